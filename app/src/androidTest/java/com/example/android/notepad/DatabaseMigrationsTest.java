@@ -0,0 +1,247 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+/**
+ * Tests the incremental schema upgrades in {@link DatabaseMigrations}. Each test builds a
+ * database with an old schema, seeds it with a large number of notes, and then opens it with
+ * the current {@link NotePadProvider.DatabaseHelper} so that onUpgrade runs.
+ */
+public class DatabaseMigrationsTest extends AndroidTestCase {
+
+    // The file name used for the database under test, kept apart from the real note_pad.db.
+    private static final String TEST_DATABASE_NAME = "migration_test.db";
+
+    // The number of notes seeded into each legacy database.
+    private static final int SEED_NOTE_COUNT = 20000;
+
+    /*
+     * Removes any database left over from an earlier test run.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    /*
+     * Removes the database created by the test.
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromVersion1() {
+        assertUpgradeKeepsNotes(1);
+    }
+
+    public void testUpgradeFromVersion2() {
+        assertUpgradeKeepsNotes(2);
+    }
+
+    public void testUpgradeFromVersion3() {
+        assertUpgradeKeepsNotes(3);
+    }
+
+    public void testUpgradeFromVersion4() {
+        assertUpgradeKeepsNotes(4);
+    }
+
+    /*
+     * Tests an upgrade that stops at version 7, where the notes table is rebuilt by the 6 -> 7
+     * step itself rather than left to the 7 -> 8 step.
+     */
+    public void testUpgradeToVersion7ConvertsNoteColors() {
+        createLegacyDatabase(4);
+
+        SQLiteDatabase db = openTestDatabase();
+        db.beginTransaction();
+        try {
+            DatabaseMigrations.migrate(db, 4, 7, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Asserts that every note color is now a packed ARGB integer.
+        assertEquals(SEED_NOTE_COUNT, count(db, "SELECT count(*) FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR + " = "
+                + NotePad.Categories.DEFAULT_COLOR));
+
+        // Asserts that the rebuilt table got its list indexes, and that color_map is gone.
+        assertEquals(3, count(db, "SELECT count(*) FROM sqlite_master WHERE type = 'index'"
+                + " AND tbl_name = 'notes' AND name LIKE 'notes_%_index'"));
+        assertEquals(0, count(db, "SELECT count(*) FROM sqlite_temp_master"
+                + " WHERE name = 'color_map'"));
+        db.close();
+    }
+
+    /*
+     * Tests that a failing upgrade leaves the old database untouched, so that the next open
+     * can resume from the old version.
+     */
+    public void testInterruptedUpgradeResumes() {
+        // Creates a version 3 database.
+        createLegacyDatabase(3);
+
+        // Opens the database with a listener that aborts the upgrade after the first step.
+        NotePadProvider.DatabaseHelper helper =
+                new NotePadProvider.DatabaseHelper(getContext(), TEST_DATABASE_NAME);
+        helper.setMigrationListener(new DatabaseMigrations.ProgressListener() {
+            @Override
+            public void onStepStarted(int fromVersion, int toVersion, int step, int stepCount) {
+            }
+
+            @Override
+            public void onStepFinished(int fromVersion, int toVersion, int step, int stepCount) {
+                throw new IllegalStateException("interrupted");
+            }
+        });
+        try {
+            helper.getWritableDatabase();
+            fail("Expected the upgrade to be interrupted");
+        } catch (IllegalStateException e) {
+            // continue
+        }
+        helper.close();
+
+        // Asserts that the database is still at version 3, with no partial changes.
+        SQLiteDatabase db = openTestDatabase();
+        assertEquals(3, db.getVersion());
+        assertFalse(DatabaseMigrations.hasColumn(
+                db, NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_CATEGORY));
+        db.close();
+
+        // Asserts that opening it again completes the upgrade.
+        assertUpgradeKeepsNotes(3, false);
+    }
+
+    private void assertUpgradeKeepsNotes(int fromVersion) {
+        assertUpgradeKeepsNotes(fromVersion, true);
+    }
+
+    private void assertUpgradeKeepsNotes(int fromVersion, boolean create) {
+        if (create) {
+            createLegacyDatabase(fromVersion);
+        }
+
+        // Opens the database with the current helper, counting the steps that are reported.
+        final int[] steps = new int[1];
+        NotePadProvider.DatabaseHelper helper =
+                new NotePadProvider.DatabaseHelper(getContext(), TEST_DATABASE_NAME);
+        helper.setMigrationListener(new DatabaseMigrations.ProgressListener() {
+            @Override
+            public void onStepStarted(int fromVersion, int toVersion, int step, int stepCount) {
+            }
+
+            @Override
+            public void onStepFinished(int fromVersion, int toVersion, int step, int stepCount) {
+                steps[0]++;
+            }
+        });
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        // Asserts that one step ran per version, and the schema is now current.
+        assertEquals(NotePadProvider.DATABASE_VERSION - fromVersion, steps[0]);
+        assertEquals(NotePadProvider.DATABASE_VERSION, db.getVersion());
+
+        // Asserts that no notes were lost.
+        assertEquals(SEED_NOTE_COUNT, count(db, "SELECT count(*) FROM " + NotePad.Notes.TABLE_NAME));
+
+        // Asserts that the default categories exist.
+        assertEquals(1, count(db, "SELECT count(*) FROM " + NotePad.Categories.TABLE_NAME
+                + " WHERE " + NotePad.Categories.COLUMN_NAME_NAME + " = '其他'"));
+
+        // Asserts that notes from before categories existed now refer to the default category,
+        // and that its hex color string was converted to a packed ARGB integer.
+        assertEquals(SEED_NOTE_COUNT, count(db, "SELECT count(*) FROM " + NotePad.Notes.TABLE_NAME
+                + " JOIN " + NotePad.Categories.TABLE_NAME + " ON "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = "
+                + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID
+                + " WHERE " + NotePad.Categories.COLUMN_NAME_NAME + " = '其他'"
+                + " AND " + NotePad.Categories.COLUMN_NAME_COLOR + " = "
+                + NotePad.Categories.DEFAULT_COLOR));
+        assertEquals(0, count(db, "SELECT count(*) FROM " + NotePad.Categories.TABLE_NAME
+                + " WHERE typeof(" + NotePad.Categories.COLUMN_NAME_COLOR + ") != 'integer'"));
+
+        // Asserts that the copied category name and color were dropped from the notes table.
+        assertFalse(DatabaseMigrations.hasColumn(
+                db, NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_CATEGORY));
+
+        // Asserts that the chunks table exists, and that existing bodies were left unsplit.
+        assertEquals(0, count(db, "SELECT count(*) FROM " + NotePad.Notes.CHUNKS_TABLE_NAME));
+
+        // Asserts that existing notes were added to the full-text index.
+        assertEquals(1, count(db, "SELECT count(*) FROM " + NotePad.Notes.FTS_TABLE_NAME
+                + " WHERE " + NotePad.Notes.FTS_TABLE_NAME + " MATCH 'seedtitle42'"));
+
+        helper.close();
+    }
+
+    /*
+     * Creates a database with the schema of the given version, filled with SEED_NOTE_COUNT
+     * notes. Versions 1 and 2 use the original notes table, version 3 added the todo status,
+     * and version 4 added categories.
+     */
+    private void createLegacyDatabase(int version) {
+        SQLiteDatabase db = openTestDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY, title TEXT, note TEXT,"
+                    + " created INTEGER, modified INTEGER"
+                    + (version >= 3 ? ", todo_status INTEGER DEFAULT 0" : "")
+                    + (version >= 4
+                            ? ", category TEXT DEFAULT '其他', category_color TEXT DEFAULT '#9E9E9E'"
+                            : "")
+                    + ");");
+
+            if (version >= 4) {
+                db.execSQL("CREATE TABLE categories (_id INTEGER PRIMARY KEY, name TEXT UNIQUE,"
+                        + " color TEXT);");
+                db.execSQL("INSERT INTO categories (name, color) VALUES ('工作', '#FF5722')");
+                db.execSQL("INSERT INTO categories (name, color) VALUES ('其他', '#9E9E9E')");
+            }
+
+            // Seeds the notes with a single compiled statement.
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT INTO notes (title, note, created, modified) VALUES (?, ?, ?, ?)");
+            for (int i = 0; i < SEED_NOTE_COUNT; i++) {
+                insert.bindString(1, "seedtitle" + i);
+                insert.bindString(2, "This is seeded note " + i);
+                insert.bindLong(3, i);
+                insert.bindLong(4, i);
+                insert.executeInsert();
+            }
+            insert.close();
+
+            db.setVersion(version);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+    }
+
+    private SQLiteDatabase openTestDatabase() {
+        File path = getContext().getDatabasePath(TEST_DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        return SQLiteDatabase.openOrCreateDatabase(path, null);
+    }
+
+    private static long count(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+}
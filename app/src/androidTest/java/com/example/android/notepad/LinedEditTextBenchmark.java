@@ -0,0 +1,82 @@
+package com.example.android.notepad;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.util.Log;
+import android.view.View;
+
+import java.util.Arrays;
+
+/**
+ * Measures the time it takes {@link NoteEditor.LinedEditText} to draw one screen of a note, for
+ * notes of increasing length. Drawing only the lines inside the clip should keep the frame time
+ * flat as the note grows.
+ *
+ * The numbers are logged under the tag "LinedEditTextBenchmark".
+ */
+public class LinedEditTextBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "LinedEditTextBenchmark";
+
+    // The size of the simulated screen.
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    // The number of frames drawn for each measurement.
+    private static final int FRAMES = 30;
+
+    /*
+     * Tests that the frame time for a 50,000 line note is close to the frame time for a 1,000
+     * line note, when the screen is scrolled to the middle of the note.
+     */
+    @UiThreadTest
+    public void testFrameTimeIsIndependentOfNoteLength() {
+        long small = measureFrameNanos(1000, true);
+        long large = measureFrameNanos(50000, true);
+        long largeAllLines = measureFrameNanos(50000, false);
+
+        Log.i(TAG, String.format("median frame: %.2f ms for 1k lines, %.2f ms for 50k lines,"
+                        + " %.2f ms for 50k lines drawing every rule",
+                small / 1e6, large / 1e6, largeAllLines / 1e6));
+
+        // Asserts that the long note costs about the same per frame as the short one.
+        assertTrue("Frame time grew with note length", large <= 3 * small + 1000000);
+    }
+
+    /*
+     * Lays out a LinedEditText holding the given number of lines, then draws the screen in the
+     * middle of the note FRAMES times and returns the median frame time in nanoseconds.
+     */
+    private long measureFrameNanos(int lineCount, boolean visibleLinesOnly) {
+        NoteEditor.LinedEditText view = new NoteEditor.LinedEditText(
+                getInstrumentation().getTargetContext(), null);
+        view.setDrawVisibleLinesOnly(visibleLinesOnly);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            text.append("Line ").append(i).append('\n');
+        }
+        view.setText(text);
+
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+        view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+
+        // Draws into a screen-sized bitmap, scrolled to the middle of the note.
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.translate(0, -view.getMeasuredHeight() / 2);
+
+        long[] frames = new long[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            long start = System.nanoTime();
+            view.draw(canvas);
+            frames[i] = System.nanoTime() - start;
+        }
+        bitmap.recycle();
+
+        Arrays.sort(frames);
+        return frames[FRAMES / 2];
+    }
+}
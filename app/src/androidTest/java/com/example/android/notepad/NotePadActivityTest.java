@@ -38,4 +38,46 @@ public class NotePadActivityTest extends ActivityInstrumentationTestCase2<NotesL
     public void testActivityTestCaseSetUpProperly() {
         assertNotNull("activity should be launched successfully", getActivity());
     }
+
+    /**
+     * Verifies that a font size change reaches the theme snapshot and the running activity
+     * without the activity being recreated.
+     */
+    public void testFontSizeChangeAppliesInPlace() {
+        final NotesList activity = getActivity();
+        final int previous = ThemeManager.getFontSizeMode(activity);
+        final int next = previous == ThemeManager.FONT_SIZE_XLARGE
+                ? ThemeManager.FONT_SIZE_SMALL : ThemeManager.FONT_SIZE_XLARGE;
+        final ThemeManager.Theme[] received = new ThemeManager.Theme[1];
+        ThemeManager.Listener listener = new ThemeManager.Listener() {
+            @Override
+            public void onThemeChanged(ThemeManager.Theme theme) {
+                received[0] = theme;
+            }
+        };
+        ThemeManager.addListener(listener);
+        try {
+            // On the main thread, the preference listener runs before apply() returns.
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    ThemeManager.setFontSizeMode(activity, next);
+                }
+            });
+            getInstrumentation().waitForIdleSync();
+
+            assertNotNull("listeners should get the new theme", received[0]);
+            assertEquals(next, received[0].getFontSizeMode());
+            assertEquals(next, ThemeManager.getTheme(activity).getFontSizeMode());
+            assertSame("activity should not be recreated", activity, getActivity());
+        } finally {
+            ThemeManager.removeListener(listener);
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    ThemeManager.setFontSizeMode(activity, previous);
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,665 @@
+package com.example.android.notepad;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the throughput and latency of {@link NotePadProvider}. Each test logs what it
+ * measured and checks it against the path or phase it is compared with.
+ *
+ * The numbers are logged under the tag "NotePadProviderBenchmark"; run the class on a device
+ * rather than an emulator for meaningful results.
+ */
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+    private static final String TAG = "NotePadProviderBenchmark";
+
+    // The number of notes written by each path.
+    private static final int ROW_COUNT = 2000;
+
+    // The number of notes exported and imported by the export and import benchmarks.
+    private static final int EXPORT_ROW_COUNT = 20000;
+
+    // The number of threads that query the notes list at the same time.
+    private static final int READER_COUNT = 4;
+
+    // The number of list queries each reader runs per phase.
+    private static final int QUERIES_PER_READER = 200;
+
+    // The seed of the generated notes and of the rows each operation picks, so that every run
+    // measures the same work.
+    private static final long SEED = 0x5EEDL;
+
+    // The untimed and timed runs of each operation in a workload.
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int ITERATIONS = 500;
+
+    // The words note bodies and search terms are made of.
+    private static final String[] WORDS = {
+        "meeting", "grocery", "project", "travel", "budget", "reading", "exercise", "recipe",
+        "deadline", "holiday", "garden", "invoice", "lecture", "birthday", "repair", "podcast"
+    };
+
+    /**
+     * The shape of the database an operation latency run starts from.
+     */
+    private static final class Workload {
+        final int noteCount;
+        final int bodyLength;
+        final int categoryCount;
+
+        Workload(int noteCount, int bodyLength, int categoryCount) {
+            this.noteCount = noteCount;
+            this.bodyLength = bodyLength;
+            this.categoryCount = categoryCount;
+        }
+
+        @Override
+        public String toString() {
+            return noteCount + " notes of " + bodyLength + " chars in " + categoryCount
+                    + " categories";
+        }
+    }
+
+    private MockContentResolver mMockResolver;
+
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+    }
+
+    /*
+     * Compares inserting notes one ContentResolver call at a time with bulkInsert and
+     * applyBatch, which write all rows in one transaction.
+     */
+    public void testBatchedInsertThroughput() throws Exception {
+        ContentValues[] notes = createNotes();
+
+        // Inserts every note with its own call, its own transaction and its own notification.
+        long start = System.nanoTime();
+        for (ContentValues note : notes) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note);
+        }
+        double perRow = rowsPerSecond(start);
+        assertNoteCount(ROW_COUNT);
+        clearNotes();
+
+        // Inserts every note with one bulkInsert call.
+        start = System.nanoTime();
+        assertEquals(ROW_COUNT, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+        double bulk = rowsPerSecond(start);
+        assertNoteCount(ROW_COUNT);
+        clearNotes();
+
+        // Inserts every note with one applyBatch call.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (ContentValues note : notes) {
+            operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                    .withValues(note)
+                    .build());
+        }
+        start = System.nanoTime();
+        assertEquals(ROW_COUNT, mMockResolver.applyBatch(NotePad.AUTHORITY, operations).length);
+        double batch = rowsPerSecond(start);
+        assertNoteCount(ROW_COUNT);
+
+        Log.i(TAG, String.format("insert: %.0f rows/s, bulkInsert: %.0f rows/s,"
+                + " applyBatch: %.0f rows/s", perRow, bulk, batch));
+
+        // Asserts that both batched paths beat the per-row path.
+        assertTrue("bulkInsert was slower than per-row inserts", bulk > perRow);
+        assertTrue("applyBatch was slower than per-row inserts", batch > perRow);
+    }
+
+    /*
+     * Compares the compiled statements behind the provider's common writes with the
+     * SQLiteDatabase calls the general path makes, which copy ContentValues and build SQL with
+     * the note id written into the WHERE clause. Then measures the same writes through the
+     * provider, which uses the compiled statements.
+     */
+    public void testCompiledWriteThroughput() {
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        NoteStatements statements = NoteStatements.forThread(db);
+        long now = System.currentTimeMillis();
+        long[] generalIds = new long[ROW_COUNT];
+        long[] compiledIds = new long[ROW_COUNT];
+
+        // Inserts notes both ways.
+        long start = System.nanoTime();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            ContentValues values = new ContentValues(createNote(i));
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+            values.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, 0);
+            generalIds[i] = db.insert(NotePad.Notes.TABLE_NAME, null, values);
+        }
+        double generalInsert = rowsPerSecond(start);
+        start = System.nanoTime();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            compiledIds[i] = statements.insertNote("Benchmark note " + i,
+                    "This is benchmark note number " + i, now, now, 0, null);
+        }
+        double compiledInsert = rowsPerSecond(start);
+
+        // Saves a new body for every note both ways, dropping any old chunks as the provider
+        // does.
+        start = System.nanoTime();
+        for (long id : generalIds) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Edited body of note " + id);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+            db.beginTransactionNonExclusive();
+            try {
+                db.delete(NotePad.Notes.CHUNKS_TABLE_NAME, "note_id IN (SELECT "
+                        + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                        + NotePad.Notes._ID + " = " + id + ")", null);
+                db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = " + id, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        double generalBody = rowsPerSecond(start);
+        start = System.nanoTime();
+        for (long id : compiledIds) {
+            statements.updateBody(id, null, "Edited body of note " + id, now);
+        }
+        double compiledBody = rowsPerSecond(start);
+
+        // Toggles the todo status of every note both ways.
+        start = System.nanoTime();
+        for (long id : generalIds) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, NotePad.Notes.TODO_STATUS_PENDING);
+            db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = " + id, null);
+        }
+        double generalTodo = rowsPerSecond(start);
+        start = System.nanoTime();
+        for (long id : compiledIds) {
+            statements.updateTodoStatus(id, NotePad.Notes.TODO_STATUS_PENDING, null);
+        }
+        double compiledTodo = rowsPerSecond(start);
+
+        // Deletes every note both ways. The general path removes the rows, while the compiled
+        // statement only marks them, as the provider does, and leaves them to the purge.
+        start = System.nanoTime();
+        for (long id : generalIds) {
+            db.delete(NotePad.Notes.TABLE_NAME, NotePad.Notes._ID + " = " + id, null);
+        }
+        double generalDelete = rowsPerSecond(start);
+        start = System.nanoTime();
+        for (long id : compiledIds) {
+            statements.deleteNote(id, now);
+        }
+        double compiledDelete = rowsPerSecond(start);
+        assertNoteCount(0);
+
+        Log.i(TAG, String.format("general vs compiled, rows/s: insert %.0f / %.0f,"
+                + " body %.0f / %.0f, todo %.0f / %.0f, delete %.0f / %.0f",
+                generalInsert, compiledInsert, generalBody, compiledBody,
+                generalTodo, compiledTodo, generalDelete, compiledDelete));
+
+        // Measures the same writes through the provider.
+        Uri[] noteUris = new Uri[ROW_COUNT];
+        start = System.nanoTime();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            noteUris[i] = mMockResolver.insert(NotePad.Notes.CONTENT_URI, createNote(i));
+        }
+        double providerInsert = rowsPerSecond(start);
+        ContentValues body = new ContentValues();
+        body.put(NotePad.Notes.COLUMN_NAME_NOTE, "Edited body");
+        body.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        start = System.nanoTime();
+        for (Uri noteUri : noteUris) {
+            assertEquals(1, mMockResolver.update(noteUri, body, null, null));
+        }
+        double providerBody = rowsPerSecond(start);
+        ContentValues todo = new ContentValues();
+        todo.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, NotePad.Notes.TODO_STATUS_COMPLETED);
+        start = System.nanoTime();
+        for (Uri noteUri : noteUris) {
+            assertEquals(1, mMockResolver.update(noteUri, todo, null, null));
+        }
+        double providerTodo = rowsPerSecond(start);
+        start = System.nanoTime();
+        for (Uri noteUri : noteUris) {
+            assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        }
+        double providerDelete = rowsPerSecond(start);
+        assertNoteCount(0);
+
+        // Purges the notes marked by the compiled statement and by the provider.
+        start = System.nanoTime();
+        assertEquals(2 * ROW_COUNT, getProvider().getPurgerForTest().purgeAll());
+        double purge = 2 * rowsPerSecond(start);
+
+        Log.i(TAG, String.format("provider, rows/s: insert %.0f, body %.0f, todo %.0f,"
+                + " delete %.0f, purge %.0f", providerInsert, providerBody, providerTodo,
+                providerDelete, purge));
+
+        // Asserts that binding the id beats preparing a statement for every id.
+        assertTrue("Compiled body saves were slower", compiledBody > generalBody);
+        assertTrue("Compiled todo updates were slower", compiledTodo > generalTodo);
+        assertTrue("Compiled deletes were slower", compiledDelete > generalDelete);
+    }
+
+    /*
+     * Tests that list queries are not held up by a writer. The readers first query the notes
+     * list on their own, then again while another thread inserts notes without pause, and the
+     * test compares the 95th percentile latency of the two phases.
+     */
+    public void testReadLatencyUnderWriteLoad() throws Exception {
+        // Asserts that the database uses write-ahead logging, so readers never wait for writers.
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        Cursor cursor = db.rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("wal", cursor.getString(0).toLowerCase());
+        cursor.close();
+
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, createNotes());
+
+        // Measures the readers with no other load.
+        long[] idle = runReaders();
+
+        // Starts a writer that inserts notes one at a time until it is stopped.
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> writerError = new AtomicReference<>();
+        final int[] written = new int[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                ContentValues note = new ContentValues();
+                try {
+                    while (!stop.get()) {
+                        note.put(NotePad.Notes.COLUMN_NAME_TITLE, "Written " + written[0]);
+                        mMockResolver.insert(NotePad.Notes.CONTENT_URI, note);
+                        written[0]++;
+                    }
+                } catch (Throwable t) {
+                    writerError.set(t);
+                }
+            }
+        };
+        writer.start();
+
+        // Measures the readers again while the writer runs.
+        long[] loaded;
+        try {
+            loaded = runReaders();
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+        if (writerError.get() != null) {
+            throw new AssertionError(writerError.get());
+        }
+
+        long idleP95 = percentile(idle, 95);
+        long loadedP95 = percentile(loaded, 95);
+        Log.i(TAG, String.format("list query p95: %.2f ms idle, %.2f ms with %d concurrent"
+                        + " inserts", idleP95 / 1e6, loadedP95 / 1e6, written[0]));
+
+        // Asserts that the writer actually ran, and that read latency stayed close to idle.
+        assertTrue(written[0] > 0);
+        assertTrue("Reads slowed down under write load",
+                loadedP95 <= 3 * idleP95 + TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    /*
+     * Measures exporting every note as NDJSON and as CSV. The export is read and discarded as
+     * it arrives, the way a client copying it to a file would.
+     */
+    public void testExportThroughput() throws Exception {
+        ContentValues[] notes = createNotes(EXPORT_ROW_COUNT);
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+
+        for (String mimeType : new String[] {
+                NotePad.Notes.EXPORT_TYPE_NDJSON, NotePad.Notes.EXPORT_TYPE_CSV }) {
+            long start = System.nanoTime();
+            AssetFileDescriptor export = mMockResolver.openTypedAssetFileDescriptor(
+                    NotePad.Notes.CONTENT_URI, mimeType, null);
+            InputStream in = export.createInputStream();
+            byte[] buffer = new byte[8192];
+            long bytes = 0;
+            int lines = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes += read;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+            }
+            in.close();
+            long elapsed = Math.max(1, System.nanoTime() - start);
+
+            Log.i(TAG, String.format("export %s: %.0f notes/s, %.1f MB/s", mimeType,
+                    EXPORT_ROW_COUNT * 1e9 / elapsed, bytes * 1e9 / elapsed / (1024 * 1024)));
+
+            // Asserts that every note was exported, plus the header row for CSV.
+            int expected = NotePad.Notes.EXPORT_TYPE_CSV.equals(mimeType)
+                    ? EXPORT_ROW_COUNT + 1
+                    : EXPORT_ROW_COUNT;
+            assertEquals(expected, lines);
+        }
+    }
+
+    /*
+     * Measures importing notes from an NDJSON file through the provider's import method, which
+     * parses on one thread and inserts batches on another.
+     */
+    public void testImportThroughput() throws Exception {
+        File file = new File(getContext().getCacheDir(), "benchmark-import.ndjson");
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        for (int i = 0; i < EXPORT_ROW_COUNT; i++) {
+            writer.write("{\"title\":\"Imported note " + i + "\",\"note\":\"This is imported note"
+                    + " number " + i + "\",\"category\":\"Category " + (i % 10) + "\"}\n");
+        }
+        writer.close();
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.IMPORT_EXTRA_SOURCE,
+                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+        long start = System.nanoTime();
+        Bundle result;
+        try {
+            result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes.METHOD_IMPORT, NotePad.Notes.EXPORT_TYPE_NDJSON, extras);
+        } finally {
+            file.delete();
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+
+        Log.i(TAG, String.format("import: %.0f notes/s", EXPORT_ROW_COUNT * 1e9 / elapsed));
+
+        // Asserts that every note was imported.
+        assertEquals(EXPORT_ROW_COUNT, result.getInt(NotePad.Notes.IMPORT_RESULT_COUNT));
+        assertNoteCount(EXPORT_ROW_COUNT);
+    }
+
+    /*
+     * Measures every provider path on a small database with short notes.
+     */
+    public void testOperationLatencySmall() throws Exception {
+        measureOperations(new Workload(1000, 200, 5));
+    }
+
+    /*
+     * Measures every provider path on a large database with long notes spread over many
+     * categories.
+     */
+    public void testOperationLatencyLarge() throws Exception {
+        measureOperations(new Workload(20000, 2000, 50));
+    }
+
+    /*
+     * Seeds the database with the workload, then times each path ITERATIONS times after
+     * WARMUP_ITERATIONS untimed runs, and logs its throughput and latency percentiles. Inserted
+     * notes are deleted again, so the database keeps the seeded size.
+     */
+    private void measureOperations(Workload workload) throws Exception {
+        final Random random = new Random(SEED);
+        ContentValues[] notes = new ContentValues[workload.noteCount];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = createNote(random, workload, i);
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+        final long[] noteIds = queryIds(NotePad.Notes.CONTENT_URI);
+        final long[] categoryIds = queryIds(NotePad.Categories.CONTENT_URI);
+        assertEquals(workload.noteCount, noteIds.length);
+        Log.i(TAG, "workload: " + workload);
+
+        final Workload shape = workload;
+        final ArrayList<Uri> inserted = new ArrayList<Uri>();
+        measure("insert", new Runnable() {
+            @Override
+            public void run() {
+                inserted.add(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                        createNote(random, shape, inserted.size())));
+            }
+        });
+
+        measure("update", new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, createBody(random, shape.bodyLength));
+                assertEquals(1, mMockResolver.update(pick(random, noteIds), values, null, null));
+            }
+        });
+
+        measure("note lookup", new Runnable() {
+            @Override
+            public void run() {
+                Cursor cursor = mMockResolver.query(pick(random, noteIds), null,
+                        null, null, null);
+                assertTrue(cursor.moveToFirst());
+                cursor.close();
+            }
+        });
+
+        final Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        Integer.toString(NoteListLoader.PAGE_SIZE))
+                .build();
+        measure("sorted list page", new Runnable() {
+            @Override
+            public void run() {
+                readAll(mMockResolver.query(pageUri, NotesList.PROJECTION, null, null,
+                        NotePad.Notes.DEFAULT_SORT_ORDER));
+            }
+        });
+
+        measure("category list", new Runnable() {
+            @Override
+            public void run() {
+                long categoryId = categoryIds[random.nextInt(categoryIds.length)];
+                readAll(mMockResolver.query(
+                        Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "category/" + categoryId),
+                        NotesList.PROJECTION, null, null, NotePad.Notes.DEFAULT_SORT_ORDER));
+            }
+        });
+
+        measure("search", new Runnable() {
+            @Override
+            public void run() {
+                readAll(mMockResolver.query(NotePad.Notes.SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH,
+                                WORDS[random.nextInt(WORDS.length)])
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                                Integer.toString(NoteListLoader.PAGE_SIZE))
+                        .build(), NotesList.PROJECTION, null, null, null));
+            }
+        });
+
+        measure("delete", new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(1, mMockResolver.delete(inserted.remove(inserted.size() - 1),
+                        null, null));
+            }
+        });
+
+        // Asserts that the deletes removed exactly the inserted notes.
+        assertTrue(inserted.isEmpty());
+        assertNoteCount(workload.noteCount);
+    }
+
+    /*
+     * Runs an operation WARMUP_ITERATIONS times untimed and ITERATIONS times timed, and logs
+     * its throughput and its 50th, 90th and 99th percentile latency.
+     */
+    private static void measure(String name, Runnable operation) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run();
+        }
+        long[] latencies = new long[ITERATIONS];
+        long total = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            latencies[i] = System.nanoTime() - start;
+            total += latencies[i];
+        }
+        Log.i(TAG, String.format("%s: %.0f ops/s, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms",
+                name, ITERATIONS * 1e9 / Math.max(1, total), percentile(latencies, 50) / 1e6,
+                percentile(latencies, 90) / 1e6, percentile(latencies, 99) / 1e6));
+    }
+
+    private static ContentValues createNote(Random random, Workload workload, int index) {
+        ContentValues note = new ContentValues();
+        note.put(NotePad.Notes.COLUMN_NAME_TITLE, "Benchmark note " + index);
+        note.put(NotePad.Notes.COLUMN_NAME_NOTE, createBody(random, workload.bodyLength));
+        note.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
+                "Category " + random.nextInt(workload.categoryCount));
+        note.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, random.nextInt(3));
+        return note;
+    }
+
+    private static String createBody(Random random, int length) {
+        StringBuilder body = new StringBuilder(length + 16);
+        while (body.length() < length) {
+            body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        body.setLength(length);
+        return body.toString();
+    }
+
+    private static Uri pick(Random random, long[] ids) {
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                ids[random.nextInt(ids.length)]);
+    }
+
+    private long[] queryIds(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri, new String[] { BaseColumns._ID }, null, null,
+                null);
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private static void readAll(Cursor cursor) {
+        while (cursor.moveToNext()) {
+            cursor.getString(1);
+        }
+        cursor.close();
+    }
+
+    /*
+     * Runs READER_COUNT threads that each query the first page of the notes list
+     * QUERIES_PER_READER times, and returns the latency of every query in nanoseconds.
+     */
+    private long[] runReaders() throws Exception {
+        final Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        Integer.toString(NoteListLoader.PAGE_SIZE))
+                .build();
+        final long[] latencies = new long[READER_COUNT * QUERIES_PER_READER];
+        final AtomicReference<Throwable> readerError = new AtomicReference<>();
+
+        Thread[] readers = new Thread[READER_COUNT];
+        for (int r = 0; r < READER_COUNT; r++) {
+            final int offset = r * QUERIES_PER_READER;
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < QUERIES_PER_READER; i++) {
+                            long start = System.nanoTime();
+                            Cursor cursor = mMockResolver.query(pageUri, NotesList.PROJECTION,
+                                    null, null, NotePad.Notes.DEFAULT_SORT_ORDER);
+                            cursor.getCount();
+                            cursor.close();
+                            latencies[offset + i] = System.nanoTime() - start;
+                        }
+                    } catch (Throwable t) {
+                        readerError.set(t);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (readerError.get() != null) {
+            throw new AssertionError(readerError.get());
+        }
+        return latencies;
+    }
+
+    private static long percentile(long[] values, int percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    private static ContentValues[] createNotes() {
+        return createNotes(ROW_COUNT);
+    }
+
+    private static ContentValues[] createNotes(int count) {
+        ContentValues[] notes = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            notes[i] = createNote(i);
+        }
+        return notes;
+    }
+
+    private static ContentValues createNote(int index) {
+        ContentValues note = new ContentValues();
+        note.put(NotePad.Notes.COLUMN_NAME_TITLE, "Benchmark note " + index);
+        note.put(NotePad.Notes.COLUMN_NAME_NOTE, "This is benchmark note number " + index);
+        return note;
+    }
+
+    private static double rowsPerSecond(long startNanos) {
+        long elapsed = Math.max(1, System.nanoTime() - startNanos);
+        return ROW_COUNT * 1e9 / elapsed;
+    }
+
+    private void clearNotes() {
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+    }
+
+    private void assertNoteCount(int expected) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertEquals(expected, cursor.getCount());
+        cursor.close();
+    }
+}
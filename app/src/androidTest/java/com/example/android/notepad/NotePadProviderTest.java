@@ -16,23 +16,50 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.ResultReceiver;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import android.text.TextUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /*
  */
@@ -186,9 +213,13 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. This should return the export types, NDJSON first.
+        String[] exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI,
+                MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(2, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_NDJSON, exportTypes[0]);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_CSV, exportTypes[1]);
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -219,10 +250,10 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertNull(mimeType);
 
         /*
-         * Tests with a URI that should not have any associated stream MIME types, but with a
-         * filter that returns all types. The result should still be null.
+         * Tests the notes table URI with the plain text filter. Multiple notes are only exported
+         * as NDJSON or CSV, so the result should be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT);
         assertNull(mimeType);
 
     }
@@ -415,6 +446,199 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertEquals(TEST_NOTES[0].note, inputData[2]);
     }
 
+    /*
+     * Tests exporting notes as NDJSON and CSV, with and without export options.
+     */
+    public void testExport() throws IOException, JSONException {
+        // Inserts test data, and a note whose body needs escaping in both formats.
+        insertData();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Quoted, \"title\"");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Line 1\nLine \"2\"\\");
+        values.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, NotePad.Notes.TODO_STATUS_PENDING);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Exports every note as NDJSON, and asserts that each line is one note in id order.
+        ArrayList<String> lines = readExport(NotePad.Notes.EXPORT_TYPE_NDJSON, null);
+        assertEquals(TEST_NOTES.length + 1, lines.size());
+        JSONObject first = new JSONObject(lines.get(0));
+        assertEquals(TEST_NOTES[0].title, first.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+        assertEquals(TEST_NOTES[0].note, first.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+        JSONObject last = new JSONObject(lines.get(TEST_NOTES.length));
+        assertEquals("Quoted, \"title\"", last.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+        assertEquals("Line 1\nLine \"2\"\\", last.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+        assertEquals("其他", last.getString(NotePad.Notes.COLUMN_NAME_CATEGORY));
+
+        // Exports only pending notes as CSV, and asserts the header and the quoted fields.
+        Bundle opts = new Bundle();
+        opts.putInt(NotePad.Notes.EXPORT_OPTION_TODO_STATUS, NotePad.Notes.TODO_STATUS_PENDING);
+        String csv = TextUtils.join("\n", readExport(NotePad.Notes.EXPORT_TYPE_CSV, opts));
+        assertTrue(csv.startsWith("_id,title,note,created,modified,todo_status,category\n"));
+        assertTrue(csv.contains(",\"Quoted, \"\"title\"\"\",\"Line 1\nLine \"\"2\"\"\\\","));
+        assertFalse(csv.contains(TEST_NOTES[0].title));
+
+        // Exports the notes modified in the first two weeks, which are the first two notes.
+        opts = new Bundle();
+        opts.putLong(NotePad.Notes.EXPORT_OPTION_MODIFIED_SINCE, START_DATE);
+        opts.putLong(NotePad.Notes.EXPORT_OPTION_MODIFIED_BEFORE, START_DATE + 2 * ONE_WEEK_MILLIS);
+        assertEquals(2, readExport(NotePad.Notes.EXPORT_TYPE_NDJSON, opts).size());
+    }
+
+    /*
+     * Tests importing notes: an NDJSON export imported back creates the same notes, and a CSV
+     * import creates the categories it names and reports its progress.
+     */
+    public void testImport() throws IOException, JSONException {
+        // Exports the test notes, deletes them, and imports the export again.
+        insertData();
+        ArrayList<String> exported = readExport(NotePad.Notes.EXPORT_TYPE_NDJSON, null);
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        assertEquals(0, countNotes());
+
+        Bundle result = importNotes(NotePad.Notes.EXPORT_TYPE_NDJSON,
+                TextUtils.join("\n", exported), null);
+        assertEquals(TEST_NOTES.length, result.getInt(NotePad.Notes.IMPORT_RESULT_COUNT));
+        assertEquals(TEST_NOTES.length, countNotes());
+
+        // Asserts that the imported notes kept their fields, apart from their ids.
+        ArrayList<String> reimported = readExport(NotePad.Notes.EXPORT_TYPE_NDJSON, null);
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            JSONObject before = new JSONObject(exported.get(index));
+            JSONObject after = new JSONObject(reimported.get(index));
+            before.remove(NotePad.Notes._ID);
+            after.remove(NotePad.Notes._ID);
+            // Notes inserted without a category are imported into the default category.
+            before.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "其他");
+            assertEquals(before.toString(), after.toString());
+        }
+
+        // Imports CSV notes in a new category, with a quoted body, collecting the progress.
+        final ArrayList<Integer> progress = new ArrayList<Integer>();
+        ResultReceiver receiver = new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                synchronized (progress) {
+                    progress.add(resultData.getInt(NotePad.Notes.IMPORT_RESULT_COUNT));
+                }
+            }
+        };
+        String csv = "title,note,category\r\n"
+                + "Imported,\"Line 1\nLine \"\"2\"\"\",Imported category\r\n"
+                + "Imported too,Plain,Imported category\r\n";
+        result = importNotes(NotePad.Notes.EXPORT_TYPE_CSV, csv, receiver);
+        assertEquals(2, result.getInt(NotePad.Notes.IMPORT_RESULT_COUNT));
+        synchronized (progress) {
+            assertEquals(1, progress.size());
+            assertEquals(2, (int) progress.get(0));
+        }
+
+        // Asserts that the category was created and the body was unquoted.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_CATEGORY },
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Imported" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Line 1\nLine \"2\"", cursor.getString(0));
+        assertEquals("Imported category", cursor.getString(1));
+        cursor.close();
+    }
+
+    // Writes the text to a file and imports it through the provider's import method.
+    private Bundle importNotes(String mimeType, String text, ResultReceiver receiver)
+            throws IOException {
+        File file = new File(getContext().getCacheDir(), "import");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(text);
+        writer.close();
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.IMPORT_EXTRA_SOURCE,
+            ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+        extras.putParcelable(NotePad.Notes.IMPORT_EXTRA_PROGRESS_RECEIVER, receiver);
+        try {
+            return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_IMPORT,
+                mimeType, extras);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests that call() checks the permission each method needs, since the framework checks
+     * the provider's permissions on queries and writes but not on calls. The provider under
+     * test runs in a context that denies every permission it checks.
+     */
+    public void testCallEnforcesPermissions() throws IOException {
+        final ArrayList<String> checked = new ArrayList<String>();
+        Context deniedContext = new ContextWrapper(getMockContext()) {
+            @Override
+            public void enforceCallingOrSelfPermission(String permission, String message) {
+                checked.add(permission);
+                throw new SecurityException(message);
+            }
+        };
+        NotePadProvider provider = new NotePadProvider();
+        provider.attachInfo(deniedContext, null);
+        try {
+            // Writes a note to import.
+            File file = new File(getContext().getCacheDir(), "import");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write("{\"title\":\"Smuggled\"}\n");
+            writer.close();
+            ParcelFileDescriptor source =
+                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            Bundle extras = new Bundle();
+            extras.putParcelable(NotePad.Notes.IMPORT_EXTRA_SOURCE, source);
+
+            // Asserts that the import is rejected without WRITE_NOTES, and imports nothing.
+            try {
+                assertCallDenied(provider, NotePad.Notes.METHOD_IMPORT,
+                    NotePad.Notes.EXPORT_TYPE_NDJSON, extras);
+            } finally {
+                source.close();
+                file.delete();
+            }
+            assertEquals(Arrays.asList("com.example.android.notepad.permission.WRITE_NOTES"),
+                checked);
+            assertEquals(0, countNotes());
+
+            // Asserts that the metrics and the cache statistics are not returned without
+            // READ_NOTES.
+            checked.clear();
+            assertCallDenied(provider, NotePad.Notes.METHOD_METRICS, null, null);
+            assertCallDenied(provider, NotePad.Notes.METHOD_CACHE_STATS, null, null);
+            assertEquals(Arrays.asList("com.example.android.notepad.permission.READ_NOTES",
+                "com.example.android.notepad.permission.READ_NOTES"), checked);
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    // Asserts that calling the method throws a SecurityException.
+    private static void assertCallDenied(NotePadProvider provider, String method, String arg,
+                                         Bundle extras) {
+        try {
+            provider.call(method, arg, extras);
+            fail("Expected " + method + " to be rejected");
+        } catch (SecurityException e) {
+            // continue
+        }
+    }
+
+    // Exports the notes in the given format and returns the lines of the export.
+    private ArrayList<String> readExport(String mimeType, Bundle opts) throws IOException {
+        AssetFileDescriptor export = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, mimeType, opts);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                export.createInputStream(), "UTF-8"));
+        ArrayList<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        reader.close();
+        return lines;
+    }
+
     /*
      * Tests the provider's public API for querying data in the table, using the URI for
      * a dataset of records.
@@ -740,6 +964,82 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertEquals(0, cursor.getCount());
     }
 
+    /*
+     * Tests that a delete only marks the note: it is hidden from every URI and can no longer be
+     * written, but stays stored until the purge removes the row, its chunks and its full-text
+     * entry.
+     */
+    public void testSoftDelete() throws IOException {
+        insertData();
+        int noteCount = countNotes();
+
+        // Looks up the first note, and gives it a body long enough to be stored in chunks.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CATEGORY_ID },
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note0" }, null);
+        assertTrue(cursor.moveToFirst());
+        long noteId = cursor.getLong(0);
+        long categoryId = cursor.getLong(1);
+        cursor.close();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+
+        StringBuilder body = new StringBuilder();
+        while (body.length() <= 2 * NotePad.Notes.BODY_CHUNK_SIZE) {
+            body.append("trashed ");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        // Deletes the note, and asserts that the note, list, category, search and live folder
+        // URIs no longer return it.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(noteCount - 1, countNotes());
+        Uri[] uris = {
+            noteUri,
+            Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "category/" + categoryId),
+            searchUri("trashed"),
+            NotePad.Notes.LIVE_FOLDER_URI
+        };
+        for (Uri uri : uris) {
+            cursor = mMockResolver.query(uri, null, null, null, null);
+            while (cursor.moveToNext()) {
+                assertTrue(uri.toString(), cursor.getLong(cursor.getColumnIndexOrThrow(
+                    NotePad.Notes._ID)) != noteId);
+            }
+            cursor.close();
+        }
+
+        // Asserts that the deleted note can be neither deleted again nor written, through the
+        // compiled and the general update paths.
+        assertEquals(0, mMockResolver.delete(noteUri, null, null));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, NotePad.Notes.TODO_STATUS_PENDING);
+        assertEquals(0, mMockResolver.update(noteUri, values, null, null));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Restored");
+        assertEquals(0, mMockResolver.update(noteUri, values, null, null));
+
+        // Asserts that the row and its chunks are still stored.
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+            NotePad.Notes._ID + " = " + noteId));
+        assertTrue(DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.CHUNKS_TABLE_NAME,
+            "note_id = " + noteId) > 0);
+
+        // Deletes the other notes through a selection, which marks only the notes not yet
+        // deleted.
+        assertEquals(noteCount - 1, mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null));
+        assertEquals(0, countNotes());
+
+        // Purges the deleted notes, and asserts that nothing is left of them.
+        assertEquals(noteCount, getProvider().getPurgerForTest().purgeAll());
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.CHUNKS_TABLE_NAME));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM "
+            + NotePad.Notes.FTS_TABLE_NAME + " WHERE " + NotePad.Notes.FTS_TABLE_NAME
+            + " MATCH 'trashed'", null));
+    }
+
     /*
      * Tests updates to the data model.
      */
@@ -790,6 +1090,666 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests full-text search through the search URI. Results come from the FTS index, which the
+     * provider keeps in sync with the notes table, and carry a snippet and a rank column.
+     */
+    public void testSearch() {
+        // Defines a projection that includes the search-only columns.
+        final String[] SEARCH_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_SEARCH_RANK
+        };
+
+        // Inserts the test data into the provider's underlying data source.
+        insertData();
+
+        // Searches for a word prefix that every test note contains.
+        Cursor cursor = mMockResolver.query(
+            searchUri("not"),   // matches "Note0".."Note9" and "note" in every body
+            SEARCH_PROJECTION,  // get the id, title, snippet and rank columns
+            null,               // no extra selection criteria
+            null,               // no selection arguments
+            null                // default sort order, by rank
+        );
+
+        // Asserts that every note matched, and that the snippet column was filled in.
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertNotNull(cursor.getString(2));
+        cursor.close();
+
+        // Searches for a title that only one note has.
+        cursor = mMockResolver.query(searchUri("Note3"), SEARCH_PROJECTION, null, null, null);
+
+        // Asserts that only that note was returned.
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note3", cursor.getString(1));
+        cursor.close();
+
+        // Updates the note's title, which should also update the index.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note3" });
+
+        // Asserts that the old title no longer matches and the new one does.
+        cursor = mMockResolver.query(searchUri("Note3"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("renamed"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Deletes the note, which should remove it from the index.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Renamed" });
+        cursor = mMockResolver.query(searchUri("renamed"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Asserts that FTS operators in user input are treated as plain words.
+        cursor = mMockResolver.query(searchUri("\"note OR*"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests searching for a Chinese word in the middle of a sentence. The index takes a run of
+     * Chinese text for one word, so such searches should match substrings instead.
+     */
+    public void testSearchFindsChineseWordsInsideSentences() {
+        // Inserts a note whose body is one sentence with no spaces.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "会议");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "今天下午和团队开会讨论项目进度");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Asserts that words from the middle and the end of the sentence are found, alone and
+        // together with a word from the title.
+        assertEquals(1, countSearchResults("开会"));
+        assertEquals(1, countSearchResults("项目进度"));
+        assertEquals(1, countSearchResults("会议 团队"));
+
+        // Asserts that a word the note does not contain is not found, and that LIKE wildcards
+        // in the input are taken literally.
+        assertEquals(0, countSearchResults("周末"));
+        assertEquals(0, countSearchResults("开%进度"));
+    }
+
+    // Returns the number of notes a search for the given user input finds.
+    private int countSearchResults(String query) {
+        Cursor cursor = mMockResolver.query(searchUri(query),
+            new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_SEARCH_RANK },
+            null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    // Builds a search URI for the given user input.
+    private static Uri searchUri(String query) {
+        return NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query)
+                .build();
+    }
+
+    /*
+     * Tests the batched write paths. bulkInsert should insert every row, and applyBatch should
+     * either apply every operation or, if one fails, none of them.
+     */
+    public void testBatchedWrites() throws RemoteException {
+        // Inserts the test notes with a single bulkInsert call.
+        ContentValues[] notes = new ContentValues[TEST_NOTES.length];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            notes[index] = TEST_NOTES[index].getContentValues();
+        }
+        assertEquals(TEST_NOTES.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+        assertEquals(TEST_NOTES.length, countNotes());
+
+        // Builds a batch that inserts a note and then asserts something that is false.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+            .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Batched")
+            .build());
+        operations.add(ContentProviderOperation.newAssertQuery(NotePad.Notes.CONTENT_URI)
+            .withExpectedCount(0)
+            .build());
+
+        // Asserts that the batch fails, and that its insert was rolled back.
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException e) {
+            // continue
+        }
+        assertEquals(TEST_NOTES.length, countNotes());
+
+        // Removes the failing assertion, and asserts that the batch is now applied.
+        operations.remove(1);
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(1, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(TEST_NOTES.length + 1, countNotes());
+    }
+
+    // Returns the number of notes in the provider.
+    private int countNotes() {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes._ID }, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /*
+     * Tests that category colors are stored as packed ARGB integers, that colors written as hex
+     * strings are converted, and that the hex compatibility columns format them back.
+     */
+    public void testCategoryColors() {
+        // Inserts a category, passing its color the way older clients do, as a hex string.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "Color test");
+        values.put(NotePad.Categories.COLUMN_NAME_COLOR, "#123456");
+        Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+
+        // Asserts that the color was stored as an integer and can still be read as a string.
+        Cursor cursor = mMockResolver.query(categoryUri,
+            new String[] {
+                NotePad.Categories.COLUMN_NAME_COLOR,
+                NotePad.Categories.COLUMN_NAME_COLOR_HEX },
+            null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(0xFF123456, cursor.getInt(0));
+        assertEquals("#123456", cursor.getString(1));
+        cursor.close();
+
+        // Inserts a note in the category without giving a color.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Colored note");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Color test");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Asserts that the note took the category's color.
+        final String[] COLOR_PROJECTION = {
+            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR_HEX
+        };
+        cursor = mMockResolver.query(noteUri, COLOR_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(0xFF123456, cursor.getInt(0));
+        assertEquals("#123456", cursor.getString(1));
+        cursor.close();
+
+        // Recolors the category, which should update the cached color used for new notes.
+        values.clear();
+        values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFFABCDEF);
+        mMockResolver.update(categoryUri, values, null, null);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Color test");
+        noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(noteUri, COLOR_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(0xFFABCDEF, cursor.getInt(0));
+        assertEquals("#ABCDEF", cursor.getString(1));
+        cursor.close();
+    }
+
+    /*
+     * Tests that notes follow their category by id: renaming or recoloring a category changes
+     * every note in it, and deleting a category moves its notes to the default category.
+     */
+    public void testCategoryChangesReachNotes() {
+        // Inserts a category and a note in it.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "Before");
+        values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFF112233);
+        Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Before");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Defines a projection for the note's category columns.
+        final String[] CATEGORY_PROJECTION = {
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR
+        };
+
+        // Asserts that the note refers to the category by id.
+        Cursor cursor = mMockResolver.query(noteUri, CATEGORY_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(categoryUri), cursor.getLong(0));
+        assertEquals("Before", cursor.getString(1));
+        cursor.close();
+
+        // Renames and recolors the category.
+        values.clear();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "After");
+        values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFF445566);
+        assertEquals(1, mMockResolver.update(categoryUri, values, null, null));
+
+        // Asserts that the note shows the new name and color.
+        cursor = mMockResolver.query(noteUri, CATEGORY_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("After", cursor.getString(1));
+        assertEquals(0xFF445566, cursor.getInt(2));
+        cursor.close();
+
+        // Asserts that the notes-by-category URI finds the note.
+        cursor = mMockResolver.query(
+            ContentUris.withAppendedId(
+                Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "category"),
+                ContentUris.parseId(categoryUri)),
+            CATEGORY_PROJECTION, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Deletes the category, and asserts that the note moved to the default category.
+        assertEquals(1, mMockResolver.delete(categoryUri, null, null));
+        cursor = mMockResolver.query(noteUri, CATEGORY_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("其他", cursor.getString(1));
+        assertEquals(NotePad.Categories.DEFAULT_COLOR, cursor.getInt(2));
+        cursor.close();
+    }
+
+    /*
+     * Tests that a body longer than one chunk is split between the note column and the chunks
+     * table, and that the body stream reads and replaces the whole body.
+     */
+    public void testChunkedBodies() throws IOException {
+        // Builds a body of three and a half chunks, ending in a word found nowhere else.
+        StringBuilder body = new StringBuilder();
+        while (body.length() < NotePad.Notes.BODY_CHUNK_SIZE * 7 / 2) {
+            body.append("Line ").append(body.length()).append('\n');
+        }
+        body.append("Tailword");
+
+        // Inserts a note with the long body.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long note");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri bodyUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_BODY);
+
+        // Asserts that the note column holds only the first chunk, and the rest is in chunks.
+        final String[] BODY_PROJECTION = {
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CHUNK_COUNT
+        };
+        Cursor cursor = mMockResolver.query(noteUri, BODY_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(body.substring(0, NotePad.Notes.BODY_CHUNK_SIZE), cursor.getString(0));
+        assertEquals(3, cursor.getInt(1));
+        cursor.close();
+
+        // Asserts that the body stream returns the whole body.
+        assertEquals(body.toString(), readBody(bodyUri));
+
+        // Asserts that the word in the last chunk is found by search.
+        assertEquals(1, countSearchResults("tailword"));
+
+        // Replaces the body through the stream with a short one.
+        Writer writer = new OutputStreamWriter(mMockResolver.openOutputStream(bodyUri), "UTF-8");
+        writer.write("Short body");
+        writer.close();
+
+        // Asserts that the old chunks are gone, and that the new body can be read back.
+        cursor = mMockResolver.query(noteUri, BODY_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short body", cursor.getString(0));
+        assertEquals(0, cursor.getInt(1));
+        cursor.close();
+        assertEquals("Short body", readBody(bodyUri));
+        assertEquals(0, countSearchResults("tailword"));
+
+        // Deletes and purges the note, and asserts that no chunks are left behind.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        mMockResolver.update(noteUri, values, null, null);
+        mMockResolver.delete(noteUri, null, null);
+        getProvider().getPurgerForTest().purgeAll();
+        cursor = mDb.query(NotePad.Notes.CHUNKS_TABLE_NAME, null, null, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that a body stream holds no transaction while the client is writing, so other writes
+     * go ahead, and that a stream closed with an error leaves the old body in place.
+     */
+    public void testAbandonedBodyWrite() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Kept");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Old body");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Other");
+        final Uri otherUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri bodyUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_BODY);
+
+        // Starts writing a new body, and leaves the stream open.
+        ParcelFileDescriptor output = mMockResolver.openFileDescriptor(bodyUri, "w");
+        Writer writer = new OutputStreamWriter(
+            new FileOutputStream(output.getFileDescriptor()), "UTF-8");
+        writer.write("Half a new bo");
+        writer.flush();
+
+        // Updates the other note from another thread, and asserts that it does not wait for
+        // the open stream.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> update = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    ContentValues title = new ContentValues();
+                    title.put(NotePad.Notes.COLUMN_NAME_TITLE, "Updated meanwhile");
+                    return mMockResolver.update(otherUri, title, null, null);
+                }
+            });
+            assertEquals(1, (int) update.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+
+        // Pipes cannot report an error before API 19, so the partial body would be stored.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            output.close();
+            return;
+        }
+
+        // Abandons the stream, and asserts that the old body is kept.
+        output.closeWithError("Client failed");
+        assertEquals("Old body", readBody(bodyUri));
+        assertEquals("Old body", queryString(noteUri,
+            new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, 0));
+    }
+
+    /*
+     * Tests that the preview column returns at most PREVIEW_LENGTH characters of the body, and
+     * that the list reads the preview rather than the body.
+     */
+    public void testPreview() {
+        // Inserts a note with a body longer than a preview, and one with a short body.
+        StringBuilder body = new StringBuilder();
+        while (body.length() < NotePad.Notes.PREVIEW_LENGTH * 10) {
+            body.append("Preview ").append(body.length()).append(' ');
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        Uri longUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        Uri shortUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Asserts that the long body is cut to the preview length, and the short one is whole.
+        final String[] PREVIEW_PROJECTION = { NotePad.Notes.COLUMN_NAME_PREVIEW };
+        Cursor cursor = mMockResolver.query(longUri, PREVIEW_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(body.substring(0, NotePad.Notes.PREVIEW_LENGTH), cursor.getString(0));
+        cursor.close();
+        cursor = mMockResolver.query(shortUri, PREVIEW_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short", cursor.getString(0));
+        cursor.close();
+
+        // Asserts that the list projection does not include the body.
+        assertFalse(Arrays.asList(NotesList.PROJECTION).contains(NotePad.Notes.COLUMN_NAME_NOTE));
+    }
+
+    /*
+     * Tests that repeated queries for one note are served from the provider's cache, and that
+     * every kind of write to the note evicts it, so no query ever returns a stale row.
+     */
+    public void testNoteCache() {
+        // Inserts a note.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        final String[] TITLE_PROJECTION = {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY
+        };
+
+        // Queries the note twice, and asserts that the first query missed and the second hit.
+        Bundle before = cacheStats();
+        assertEquals("Cached", queryString(noteUri, TITLE_PROJECTION, 0));
+        assertEquals("Cached", queryString(noteUri, TITLE_PROJECTION, 0));
+        Bundle after = cacheStats();
+        assertEquals(1, after.getInt(NotePad.Notes.CACHE_STATS_MISSES)
+                - before.getInt(NotePad.Notes.CACHE_STATS_MISSES));
+        assertEquals(1, after.getInt(NotePad.Notes.CACHE_STATS_HITS)
+                - before.getInt(NotePad.Notes.CACHE_STATS_HITS));
+        assertTrue(after.getInt(NotePad.Notes.CACHE_STATS_SIZE) > 0);
+
+        // Updates the note through its own URI, and asserts that the new title is returned.
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Updated");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("Updated", queryString(noteUri, TITLE_PROJECTION, 0));
+
+        // Updates the note through a selection on the notes URI.
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Selected");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Updated" });
+        assertEquals("Selected", queryString(noteUri, TITLE_PROJECTION, 0));
+
+        // Renames the note's category, and asserts that the note shows the new name.
+        Cursor cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI,
+            new String[] { NotePad.Categories._ID },
+            NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { "其他" }, null);
+        assertTrue(cursor.moveToFirst());
+        Uri categoryUri = ContentUris.withAppendedId(
+            NotePad.Categories.CONTENT_ID_URI_BASE, cursor.getLong(0));
+        cursor.close();
+        values.clear();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "Renamed");
+        mMockResolver.update(categoryUri, values, null, null);
+        assertEquals("Renamed", queryString(noteUri, TITLE_PROJECTION, 1));
+
+        // Asserts that a requery of an open cursor reads the note again.
+        cursor = mMockResolver.query(noteUri, TITLE_PROJECTION, null, null, null);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Requeried");
+        mMockResolver.update(noteUri, values, null, null);
+        assertTrue(cursor.requery());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Requeried", cursor.getString(0));
+        cursor.close();
+
+        // Deletes the note through a selection, and asserts that it is gone.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Requeried" });
+        cursor = mMockResolver.query(noteUri, TITLE_PROJECTION, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    // Queries one column of a note.
+    private String queryString(Uri noteUri, String[] projection, int column) {
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(column);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Reads the note cache counters.
+    private Bundle cacheStats() {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_CACHE_STATS,
+            null, null);
+    }
+
+    /*
+     * Tests that the provider's metrics count calls, rows, bytes and notifications per
+     * operation and URI type.
+     */
+    public void testMetrics() throws IOException {
+        // Inserts two notes, updates both through the notes URI and deletes one by id.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Measured");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Measured body");
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null).close();
+        assertEquals("Measured body", readBody(
+            Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_BODY)));
+        mMockResolver.delete(noteUri, null, null);
+
+        Bundle metrics = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+            NotePad.Notes.METHOD_METRICS, null, null);
+
+        Bundle inserts = metrics.getBundle(NotePad.Notes.METRICS_INSERT).getBundle("notes");
+        assertEquals(2, inserts.getLong(NotePad.Notes.METRICS_CALLS));
+        assertEquals(2, inserts.getLong(NotePad.Notes.METRICS_ROWS));
+
+        Bundle updates = metrics.getBundle(NotePad.Notes.METRICS_UPDATE).getBundle("notes");
+        assertEquals(1, updates.getLong(NotePad.Notes.METRICS_CALLS));
+        assertEquals(2, updates.getLong(NotePad.Notes.METRICS_ROWS));
+
+        Bundle queries = metrics.getBundle(NotePad.Notes.METRICS_QUERY).getBundle("notes");
+        assertEquals(1, queries.getLong(NotePad.Notes.METRICS_CALLS));
+        // Counting the rows would run the query before the client reads it, so none are.
+        assertEquals(0, queries.getLong(NotePad.Notes.METRICS_ROWS));
+
+        Bundle deletes = metrics.getBundle(NotePad.Notes.METRICS_DELETE).getBundle("note");
+        assertEquals(1, deletes.getLong(NotePad.Notes.METRICS_ROWS));
+
+        // Asserts that the body stream counted its bytes.
+        Bundle streams = metrics.getBundle(NotePad.Notes.METRICS_STREAM).getBundle("note_body");
+        assertEquals("Measured body".length(), streams.getLong(NotePad.Notes.METRICS_BYTES));
+
+        // Asserts that every write sent a notification: two inserts and a delete on note URIs,
+        // and an update on the notes URI.
+        Bundle notify = metrics.getBundle(NotePad.Notes.METRICS_NOTIFY);
+        assertEquals(3, notify.getBundle("note").getLong(NotePad.Notes.METRICS_CALLS));
+        assertEquals(1, notify.getBundle("notes").getLong(NotePad.Notes.METRICS_CALLS));
+
+        // Asserts that the histogram holds every call, with one more bucket than bounds.
+        long[] histogram = queries.getLongArray(NotePad.Notes.METRICS_HISTOGRAM);
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        assertEquals(1, total);
+        assertEquals(histogram.length - 1,
+            metrics.getLongArray(NotePad.Notes.METRICS_HISTOGRAM_BOUNDS).length);
+    }
+
+    // Reads a body stream into a String.
+    private String readBody(Uri bodyUri) throws IOException {
+        Reader reader = new InputStreamReader(mMockResolver.openInputStream(bodyUri), "UTF-8");
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            text.append(buffer, 0, read);
+        }
+        reader.close();
+        return text.toString();
+    }
+
+    /*
+     * Tests that every query the notes list can issue is served by an index. For each sort
+     * order offered by the list, with and without the category filter, the test asks SQLite for
+     * the query plan and fails if the notes table is scanned without an index.
+     */
+    public void testListQueriesUseIndexes() {
+        // The sort orders offered by the list's sort spinner.
+        final String[] SORT_ORDERS = {
+            NotePad.Notes.DEFAULT_SORT_ORDER,
+            NotePad.Notes.SORT_ORDER_CATEGORY,
+            NotePad.Notes.SORT_ORDER_TODO_STATUS
+        };
+
+        // Inserts test data, so that the planner sees a populated table.
+        insertData();
+
+        // Looks up the id of the default category, to filter the list by.
+        Cursor cursor = mDb.query(NotePad.Categories.TABLE_NAME,
+                new String[] { NotePad.Categories._ID },
+                NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { "其他" },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String categoryId = cursor.getString(0);
+        cursor.close();
+
+        for (String sortOrder : SORT_ORDERS) {
+            // Checks the unfiltered list. The index should also return rows in list order.
+            String sql = getProvider().buildQuerySql(
+                    NotePad.Notes.CONTENT_URI, NotesList.PROJECTION, null, sortOrder);
+            assertQueryUsesIndex(sql, null, true);
+
+            // Checks the list filtered to one category.
+            sql = getProvider().buildQuerySql(NotePad.Notes.CONTENT_URI, NotesList.PROJECTION,
+                    NotesList.CATEGORY_SELECTION, sortOrder);
+            assertQueryUsesIndex(sql, new String[] { categoryId }, false);
+        }
+    }
+
+    /*
+     * Tests that queries bind the values taken from their URI, so that every note shares one
+     * statement, and that bound ids, selection arguments and limits land in the right places.
+     */
+    public void testQueryPlans() {
+        insertData();
+
+        // Asserts that two notes share the same cached SQL, which names neither id.
+        Uri firstUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        Uri secondUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+        String sql = getProvider().buildQuerySql(firstUri, NotesList.PROJECTION, null, null);
+        assertSame(sql, getProvider().buildQuerySql(secondUri, NotesList.PROJECTION, null, null));
+        assertFalse(sql.contains("= 1"));
+
+        // Queries a note with a selection, so the id is bound ahead of the selection argument.
+        Cursor cursor = mMockResolver.query(secondUri, NotesList.PROJECTION,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(secondUri, NotesList.PROJECTION,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note0" }, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Asserts that a bound limit is applied after the selection.
+        Uri limitUri = NotePad.Notes.CONTENT_URI.buildUpon()
+            .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "2")
+            .build();
+        cursor = mMockResolver.query(limitUri, NotesList.PROJECTION,
+            NotePad.Notes.COLUMN_NAME_TITLE + " != ?", new String[] { "Note0" }, null);
+        assertEquals(Math.min(2, TEST_NOTES.length - 1), cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Asserts that the plan for a query never scans the notes table without an index. If
+     * ordered is true, also asserts that no temporary B-tree is needed to sort the results.
+     */
+    private void assertQueryUsesIndex(String sql, String[] args, boolean ordered) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detailIndex = plan.getColumnIndexOrThrow("detail");
+        try {
+            while (plan.moveToNext()) {
+                String detail = plan.getString(detailIndex);
+                if (detail.matches("SCAN (TABLE )?" + NotePad.Notes.TABLE_NAME + "\\b.*")) {
+                    assertTrue("Full scan in plan for " + sql + ": " + detail,
+                            detail.contains("USING"));
+                }
+                if (ordered) {
+                    assertFalse("Sort step in plan for " + sql + ": " + detail,
+                            detail.contains("TEMP B-TREE"));
+                }
+            }
+        } finally {
+            plan.close();
+        }
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
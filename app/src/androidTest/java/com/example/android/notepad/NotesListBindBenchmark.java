@@ -0,0 +1,152 @@
+package com.example.android.notepad;
+
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.view.View;
+import android.widget.CursorAdapter;
+import android.widget.ListView;
+
+import java.util.Arrays;
+
+/**
+ * Measures what it costs the notes list adapter to bind a row, the work done for every row
+ * that scrolls into view. Binding copies the cursor into buffers the row keeps, so it should
+ * allocate next to nothing and take the same time however often rows are recycled.
+ *
+ * The numbers are logged under the tag "NotesListBindBenchmark".
+ */
+public class NotesListBindBenchmark extends ActivityInstrumentationTestCase2<NotesList> {
+    private static final String TAG = "NotesListBindBenchmark";
+
+    // The number of rows in the list, and the number of row views they are recycled through,
+    // about one screen.
+    private static final int ROWS = 200;
+    private static final int ROW_VIEWS = 10;
+
+    // The number of times every row is bound, after one pass to warm up.
+    private static final int PASSES = 20;
+
+    // setImageResource() resolves the todo icon again on every bind, which takes a few objects.
+    // Everything else a bind sets comes out of the row's buffers.
+    private static final int MAX_ALLOCATIONS_PER_BIND = 10;
+
+    // Keeps the allocation probe from being optimized away.
+    private Object mProbe;
+
+    public NotesListBindBenchmark() {
+        super(NotesList.class);
+    }
+
+    /*
+     * Tests that binding rows over and over allocates next to nothing, where the runtime counts
+     * allocations, and that the bind time does not grow from the first pass to the last.
+     */
+    public void testBindAllocatesNothingAndKeepsItsPace() {
+        final NotesList activity = getActivity();
+        final long[] passNanos = new long[PASSES];
+        final int[] allocations = { -1 };
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                CursorAdapter adapter = (CursorAdapter) activity.getListAdapter();
+                ListView list = activity.getListView();
+                MatrixCursor cursor = createRows();
+
+                View[] views = new View[ROW_VIEWS];
+                cursor.moveToFirst();
+                for (int i = 0; i < ROW_VIEWS; i++) {
+                    views[i] = adapter.newView(activity, cursor, list);
+                }
+
+                // Warms up the rows' buffers and the code paths.
+                bindAll(adapter, activity, cursor, views);
+
+                long[] binds = new long[ROWS];
+                for (int pass = 0; pass < PASSES; pass++) {
+                    for (int row = 0; row < ROWS; row++) {
+                        cursor.moveToPosition(row);
+                        long start = System.nanoTime();
+                        adapter.bindView(views[row % ROW_VIEWS], activity, cursor);
+                        binds[row] = System.nanoTime() - start;
+                    }
+                    Arrays.sort(binds);
+                    passNanos[pass] = binds[ROWS / 2];
+                }
+
+                allocations[0] = countAllocations(adapter, activity, cursor, views);
+                cursor.close();
+            }
+        });
+
+        long first = passNanos[0];
+        long last = passNanos[PASSES - 1];
+        Log.i(TAG, String.format("median bind: %.2f us in the first pass, %.2f us in the last;"
+                        + " %d allocations for %d binds",
+                first / 1e3, last / 1e3, allocations[0], ROWS));
+
+        // Asserts that the binds of the last pass cost about what those of the first did.
+        assertTrue("Bind time grew from pass to pass", last <= 2 * first + 50000);
+
+        if (allocations[0] >= 0) {
+            assertTrue("Binding allocated " + allocations[0] + " objects for " + ROWS + " rows",
+                    allocations[0] <= MAX_ALLOCATIONS_PER_BIND * ROWS);
+        }
+    }
+
+    /*
+     * Returns a cursor over ROWS notes in the list projection, with titles, previews, dates,
+     * todo states and categories that differ from row to row.
+     */
+    private static MatrixCursor createRows() {
+        MatrixCursor cursor = new MatrixCursor(NotesList.PROJECTION, ROWS);
+        long modified = 1400000000000L;
+        for (int i = 0; i < ROWS; i++) {
+            boolean categorized = i % 4 != 0;
+            cursor.addRow(new Object[] {
+                    (long) i + 1,
+                    "Note " + i,
+                    "The preview of note " + i + ", which runs on for a while to fill the row",
+                    modified - i * 3600000L,
+                    i % 3,
+                    categorized ? "Category " + (i % 5) : null,
+                    categorized ? 0xFF000000 | (i * 0x102030) : null,
+                    categorized ? (long) (i % 5) + 1 : null
+            });
+        }
+        return cursor;
+    }
+
+    private static void bindAll(CursorAdapter adapter, NotesList activity, MatrixCursor cursor,
+                                View[] views) {
+        for (int row = 0; row < ROWS; row++) {
+            cursor.moveToPosition(row);
+            adapter.bindView(views[row % ROW_VIEWS], activity, cursor);
+        }
+    }
+
+    /*
+     * Binds every row once and returns the number of objects that took on this thread, or -1
+     * if the runtime does not count allocations.
+     */
+    @SuppressWarnings("deprecation")
+    private int countAllocations(CursorAdapter adapter, NotesList activity, MatrixCursor cursor,
+                                 View[] views) {
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            mProbe = new byte[16];
+            if (Debug.getThreadAllocCount() == 0) {
+                return -1;
+            }
+
+            Debug.resetThreadAllocCount();
+            bindAll(adapter, activity, cursor, views);
+            return Debug.getThreadAllocCount();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+}
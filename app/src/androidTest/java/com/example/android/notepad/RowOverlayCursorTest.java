@@ -0,0 +1,106 @@
+package com.example.android.notepad;
+
+import android.database.CharArrayBuffer;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.LongSparseArray;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+/**
+ * Tests the patches the notes list applies in place of a reload: the change URIs sent by
+ * {@link NotePadProvider}, and the rows {@link RowOverlayCursor} returns once notes and
+ * categories are patched.
+ */
+public class RowOverlayCursorTest extends AndroidTestCase {
+
+    // The columns of the test list, in the order of the notes list projection.
+    private static final String[] COLUMNS = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_TODO_STATUS,
+        NotePad.Notes.COLUMN_NAME_CATEGORY,
+        NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+    };
+
+    private final LongSparseArray<Object[]> mNotes = new LongSparseArray<Object[]>();
+    private final LongSparseArray<Object[]> mCategories = new LongSparseArray<Object[]>();
+
+    /*
+     * Tests that an update names the note, the kind of change and the columns written.
+     */
+    public void testNoteChangeUri() {
+        Uri uri = NotePadProvider.noteChangeUri(7, NotePad.Notes.CHANGE_UPDATE,
+            new LinkedHashSet<String>(Arrays.asList(
+                NotePad.Notes.COLUMN_NAME_TODO_STATUS, NotePad.Notes.COLUMN_NAME_TITLE)));
+
+        assertEquals(7, Long.parseLong(uri.getLastPathSegment()));
+        assertEquals(NotePad.Notes.CHANGE_UPDATE,
+            uri.getQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_OP));
+        assertEquals("todo_status,title",
+            uri.getQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_COLUMNS));
+
+        // Asserts that a delete names no columns.
+        uri = NotePadProvider.noteChangeUri(7, NotePad.Notes.CHANGE_DELETE, null);
+        assertNull(uri.getQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_COLUMNS));
+    }
+
+    /*
+     * Tests that a patched note replaces its whole row and leaves the other rows alone.
+     */
+    public void testNotePatch() {
+        RowOverlayCursor cursor = createCursor();
+
+        // Patches the todo status of note 2.
+        mNotes.put(2, new Object[] { 2L, "Second", 1L, "Work", 10L });
+
+        assertTrue(cursor.moveToPosition(0));
+        assertEquals(0, cursor.getInt(2));
+        assertTrue(cursor.moveToPosition(1));
+        assertEquals(1, cursor.getInt(2));
+        assertEquals("Second", cursor.getString(1));
+
+        // Asserts that a patched string is copied into a reused buffer.
+        CharArrayBuffer buffer = new CharArrayBuffer(2);
+        cursor.copyStringToBuffer(1, buffer);
+        assertEquals("Second", new String(buffer.data, 0, buffer.sizeCopied));
+        cursor.close();
+    }
+
+    /*
+     * Tests that a patched category changes the category columns of every row in it, including
+     * a patched row, and leaves the other columns alone.
+     */
+    public void testCategoryPatch() {
+        RowOverlayCursor cursor = createCursor();
+
+        // Patches note 1 and renames category 10.
+        mNotes.put(1, new Object[] { 1L, "First again", 0L, "Work", 10L });
+        mCategories.put(10, new Object[] {
+            RowOverlayCursor.KEEP, RowOverlayCursor.KEEP, RowOverlayCursor.KEEP, "Job",
+            RowOverlayCursor.KEEP });
+
+        assertTrue(cursor.moveToPosition(0));
+        assertEquals("First again", cursor.getString(1));
+        assertEquals("Job", cursor.getString(3));
+        assertTrue(cursor.moveToPosition(1));
+        assertEquals("Job", cursor.getString(3));
+        assertEquals(10, cursor.getLong(4));
+
+        // Asserts that a row in another category is unchanged.
+        assertTrue(cursor.moveToPosition(2));
+        assertEquals("Home", cursor.getString(3));
+        cursor.close();
+    }
+
+    // Creates a list of three notes, two in category 10 and one in category 20.
+    private RowOverlayCursor createCursor() {
+        MatrixCursor rows = new MatrixCursor(COLUMNS);
+        rows.addRow(new Object[] { 1L, "First", 0L, "Work", 10L });
+        rows.addRow(new Object[] { 2L, "Second", 0L, "Work", 10L });
+        rows.addRow(new Object[] { 3L, "Third", 2L, "Home", 20L });
+        return new RowOverlayCursor(rows, mNotes, mCategories);
+    }
+}
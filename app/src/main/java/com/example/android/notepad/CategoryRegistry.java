@@ -0,0 +1,205 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the categories of the process in memory, so that spinners and pickers can show them
+ * without querying the provider.
+ *
+ * The categories are read once, and read again on a background thread whenever the provider
+ * reports a change to them. Each read produces a new immutable {@link Snapshot}, which is handed
+ * to the registered listeners on the main thread.
+ */
+final class CategoryRegistry {
+
+    private static final String[] PROJECTION = {
+            NotePad.Categories._ID,
+            NotePad.Categories.COLUMN_NAME_NAME,
+            NotePad.Categories.COLUMN_NAME_COLOR,
+    };
+
+    interface Listener {
+        void onCategoriesChanged(Snapshot snapshot);
+    }
+
+    /**
+     * The categories at one point in time, sorted by name.
+     */
+    static final class Snapshot {
+        private final long[] mIds;
+        private final List<String> mNames;
+        private final int[] mColors;
+
+        Snapshot(long[] ids, String[] names, int[] colors) {
+            mIds = ids;
+            mNames = Collections.unmodifiableList(Arrays.asList(names));
+            mColors = colors;
+        }
+
+        int size() {
+            return mIds.length;
+        }
+
+        long getId(int position) {
+            return mIds[position];
+        }
+
+        String getName(int position) {
+            return mNames.get(position);
+        }
+
+        int getColor(int position) {
+            return mColors[position];
+        }
+
+        List<String> getNames() {
+            return mNames;
+        }
+
+        /**
+         * Returns the position of the category with the given id, or -1.
+         */
+        int indexOfId(long id) {
+            for (int i = 0; i < mIds.length; i++) {
+                if (mIds[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the position of the category with the given name, or -1.
+         */
+        int indexOfName(String name) {
+            return mNames.indexOf(name);
+        }
+    }
+
+    private static CategoryRegistry sInstance;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private volatile Snapshot mSnapshot;
+
+    private CategoryRegistry(Context context) {
+        mContext = context;
+
+        HandlerThread thread = new HandlerThread("CategoryRegistry");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        mContext.getContentResolver().registerContentObserver(NotePad.Categories.CONTENT_URI,
+                true, new ContentObserver(handler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        reload();
+                    }
+                });
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                getSnapshot();
+            }
+        });
+    }
+
+    /**
+     * Returns the registry of the process, starting to read the categories in the background
+     * on first use.
+     */
+    static synchronized CategoryRegistry get(Context context) {
+        if (sInstance == null) {
+            sInstance = new CategoryRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the current categories. Only the first call of the process can read the
+     * database, and only if the background read has not finished yet.
+     */
+    Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                if (mSnapshot == null) {
+                    mSnapshot = load();
+                }
+                snapshot = mSnapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Adds a listener that is called on the main thread with every new snapshot.
+     */
+    void addListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    private void reload() {
+        final Snapshot snapshot;
+        synchronized (this) {
+            snapshot = load();
+            mSnapshot = snapshot;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // A newer snapshot has its own post.
+                if (snapshot != mSnapshot) {
+                    return;
+                }
+                Listener[] listeners;
+                synchronized (mListeners) {
+                    listeners = mListeners.toArray(new Listener[mListeners.size()]);
+                }
+                for (Listener listener : listeners) {
+                    listener.onCategoriesChanged(snapshot);
+                }
+            }
+        });
+    }
+
+    private Snapshot load() {
+        Cursor c = mContext.getContentResolver().query(NotePad.Categories.CONTENT_URI,
+                PROJECTION, null, null, NotePad.Categories.COLUMN_NAME_NAME + " ASC");
+        if (c == null) {
+            return new Snapshot(new long[0], new String[0], new int[0]);
+        }
+        try {
+            int count = c.getCount();
+            long[] ids = new long[count];
+            String[] names = new String[count];
+            int[] colors = new int[count];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+                names[i] = c.getString(1);
+                colors[i] = c.getInt(2);
+            }
+            return new Snapshot(ids, names, colors);
+        } finally {
+            c.close();
+        }
+    }
+}
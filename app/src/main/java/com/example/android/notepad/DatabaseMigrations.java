@@ -0,0 +1,345 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Incremental schema upgrades for note_pad.db. Each step moves the schema forward by exactly
+ * one version and touches only what changed in that version, so existing notes are carried
+ * over instead of being dropped.
+ *
+ * SQLiteOpenHelper runs onUpgrade and the final version bump in a single transaction. If an
+ * upgrade is interrupted, nothing is committed and the next open starts again from the last
+ * committed version. Steps are also written to be idempotent, so re-running one against a
+ * partially upgraded schema is safe.
+ *
+ * A step that rebuilds a table a later step of the same upgrade rebuilds again leaves its part
+ * of the work to that step, so an upgrade copies the notes at most once.
+ */
+final class DatabaseMigrations {
+    private static final String TAG = "DatabaseMigrations";
+
+    /**
+     * The oldest schema that can be upgraded in place. Versions 1 and 2 both use the original
+     * five-column notes table.
+     */
+    static final int OLDEST_MIGRATABLE_VERSION = 1;
+
+    interface ProgressListener {
+        void onStepStarted(int fromVersion, int toVersion, int step, int stepCount);
+
+        void onStepFinished(int fromVersion, int toVersion, int step, int stepCount);
+    }
+
+    private abstract static class Migration {
+        /**
+         * Runs the step. targetVersion is the version the whole upgrade ends at, so that a step
+         * can leave work to a later step that redoes it anyway.
+         */
+        abstract void migrate(SQLiteDatabase db, int targetVersion);
+    }
+
+    /**
+     * MIGRATIONS[n] upgrades version n + 1 to version n + 2.
+     */
+    private static final Migration[] MIGRATIONS = new Migration[] {
+            // 1 -> 2
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + NotePad.Notes.TABLE_NAME + " ("
+                            + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                            + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                            + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                            + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
+                            + ");");
+                }
+            },
+            // 2 -> 3
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    addColumnIfMissing(db, NotePad.Notes.TABLE_NAME,
+                            NotePad.Notes.COLUMN_NAME_TODO_STATUS, "INTEGER DEFAULT 0");
+                }
+            },
+            // 3 -> 4
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    addColumnIfMissing(db, NotePad.Notes.TABLE_NAME,
+                            NotePad.Notes.COLUMN_NAME_CATEGORY, "TEXT DEFAULT '其他'");
+                    addColumnIfMissing(db, NotePad.Notes.TABLE_NAME,
+                            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR, "TEXT DEFAULT '#9E9E9E'");
+
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + NotePad.Categories.TABLE_NAME + " ("
+                            + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
+                            + NotePad.Categories.COLUMN_NAME_NAME + " TEXT UNIQUE,"
+                            + NotePad.Categories.COLUMN_NAME_COLOR + " TEXT"
+                            + ");");
+
+                    String insert = "INSERT OR IGNORE INTO " + NotePad.Categories.TABLE_NAME + " ("
+                            + NotePad.Categories.COLUMN_NAME_NAME + ", "
+                            + NotePad.Categories.COLUMN_NAME_COLOR + ") VALUES (?, ?)";
+                    db.execSQL(insert, new Object[] { "工作", "#FF5722" });
+                    db.execSQL(insert, new Object[] { "学习", "#4CAF50" });
+                    db.execSQL(insert, new Object[] { "生活", "#2196F3" });
+                    db.execSQL(insert, new Object[] { "其他", "#9E9E9E" });
+                }
+            },
+            // 4 -> 5
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    dropFullTextIndex(db);
+
+                    // 10 -> 11 builds the index again over the full bodies.
+                    if (targetVersion > 10) {
+                        return;
+                    }
+
+                    NotePadProvider.DatabaseHelper.createFullTextIndex(db);
+
+                    // There are no chunks before version 9, so the note column is the body.
+                    db.execSQL("INSERT INTO " + NotePad.Notes.FTS_TABLE_NAME + "(docid, title,"
+                            + " note) SELECT _id, title, note FROM notes;");
+                }
+            },
+            // 5 -> 6
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    // 6 -> 7 rebuilds the notes table with these indexes.
+                    if (targetVersion > 6) {
+                        return;
+                    }
+                    db.execSQL("CREATE INDEX IF NOT EXISTS notes_modified_index ON notes"
+                            + " (modified DESC, _id DESC);");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS notes_category_index ON notes"
+                            + " (category, modified DESC, _id DESC);");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS notes_todo_status_index ON notes"
+                            + " (todo_status, modified DESC, _id DESC);");
+                }
+            },
+            // 6 -> 7
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    // Parses each distinct hex string once, instead of once per note.
+                    db.execSQL("DROP TABLE IF EXISTS color_map;");
+                    db.execSQL("CREATE TEMP TABLE color_map (hex TEXT PRIMARY KEY, argb INTEGER);");
+                    Cursor c = db.rawQuery("SELECT category_color FROM notes"
+                            + " WHERE typeof(category_color) = 'text'"
+                            + " UNION SELECT color FROM categories WHERE typeof(color) = 'text'",
+                            null);
+                    try {
+                        while (c.moveToNext()) {
+                            db.execSQL("INSERT INTO color_map (hex, argb) VALUES (?, ?)",
+                                    new Object[] {
+                                            c.getString(0),
+                                            NotePadProvider.parseColor(c.getString(0)) });
+                        }
+                    } finally {
+                        c.close();
+                    }
+
+                    // SQLite cannot change a column type in place, so both tables are copied.
+                    // Note ids are kept, so the full-text index stays valid. A copy left by an
+                    // earlier attempt is dropped first.
+                    db.execSQL("DROP TABLE IF EXISTS categories_new;");
+                    db.execSQL("CREATE TABLE categories_new (_id INTEGER PRIMARY KEY,"
+                            + " name TEXT UNIQUE, color INTEGER);");
+                    db.execSQL("INSERT INTO categories_new (_id, name, color)"
+                            + " SELECT _id, name, " + toColor("color") + " FROM categories;");
+                    db.execSQL("DROP TABLE categories;");
+                    db.execSQL("ALTER TABLE categories_new RENAME TO categories;");
+
+                    // 7 -> 8 rebuilds the notes table again, so the notes are copied only once,
+                    // there, and color_map is kept for it to convert their colors.
+                    if (targetVersion > 7) {
+                        return;
+                    }
+
+                    db.execSQL("DROP TABLE IF EXISTS notes_new;");
+                    db.execSQL("CREATE TABLE notes_new (_id INTEGER PRIMARY KEY, title TEXT,"
+                            + " note TEXT, created INTEGER, modified INTEGER,"
+                            + " todo_status INTEGER DEFAULT 0, category TEXT DEFAULT '其他',"
+                            + " category_color INTEGER DEFAULT "
+                            + NotePad.Categories.DEFAULT_COLOR + ");");
+                    db.execSQL("INSERT INTO notes_new (_id, title, note, created, modified,"
+                            + " todo_status, category, category_color)"
+                            + " SELECT _id, title, note, created, modified, todo_status, category, "
+                            + toColor("category_color") + " FROM notes;");
+                    db.execSQL("DROP TABLE notes;");
+                    db.execSQL("ALTER TABLE notes_new RENAME TO notes;");
+                    db.execSQL("DROP TABLE IF EXISTS color_map;");
+
+                    NotePadProvider.DatabaseHelper.createFullTextTriggers(db);
+
+                    db.execSQL("CREATE INDEX IF NOT EXISTS notes_modified_index ON notes"
+                            + " (modified DESC, _id DESC);");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS notes_category_index ON notes"
+                            + " (category, modified DESC, _id DESC);");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS notes_todo_status_index ON notes"
+                            + " (todo_status, modified DESC, _id DESC);");
+                }
+            },
+            // 7 -> 8
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    // Notes may name a category that was never added to the categories table.
+                    // Those names become categories, so that no note loses its category. If
+                    // 6 -> 7 left the notes to this step, their colors are still hex strings.
+                    String color = hasTempTable(db, "color_map")
+                            ? toColor("category_color") : "category_color";
+                    db.execSQL("INSERT OR IGNORE INTO categories (name, color)"
+                            + " SELECT category, " + color + " FROM notes"
+                            + " WHERE category IS NOT NULL GROUP BY category;");
+
+                    // Replaces the copied name and color with a reference to the category.
+                    db.execSQL("DROP TABLE IF EXISTS notes_new;");
+                    db.execSQL("CREATE TABLE notes_new (_id INTEGER PRIMARY KEY, title TEXT,"
+                            + " note TEXT, created INTEGER, modified INTEGER,"
+                            + " todo_status INTEGER DEFAULT 0,"
+                            + " category_id INTEGER REFERENCES categories(_id));");
+                    db.execSQL("INSERT INTO notes_new (_id, title, note, created, modified,"
+                            + " todo_status, category_id)"
+                            + " SELECT _id, title, note, created, modified, todo_status,"
+                            + " (SELECT categories._id FROM categories"
+                            + " WHERE categories.name = coalesce(notes.category, '其他'))"
+                            + " FROM notes;");
+                    db.execSQL("DROP TABLE notes;");
+                    db.execSQL("ALTER TABLE notes_new RENAME TO notes;");
+                    db.execSQL("DROP TABLE IF EXISTS color_map;");
+
+                    NotePadProvider.DatabaseHelper.createFullTextTriggers(db);
+
+                    db.execSQL("CREATE INDEX IF NOT EXISTS notes_modified_index ON notes"
+                            + " (modified DESC, _id DESC);");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS notes_category_index ON notes"
+                            + " (category_id, modified DESC, _id DESC);");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS notes_todo_status_index ON notes"
+                            + " (todo_status, modified DESC, _id DESC);");
+                }
+            },
+            // 8 -> 9
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    // Existing bodies stay in the note column; they are only split into chunks
+                    // when they are next written.
+                    db.execSQL("CREATE TABLE IF NOT EXISTS note_chunks ("
+                            + "note_id INTEGER NOT NULL REFERENCES notes(_id),"
+                            + " seq INTEGER NOT NULL, text TEXT NOT NULL,"
+                            + " PRIMARY KEY (note_id, seq));");
+                    db.execSQL("CREATE TRIGGER IF NOT EXISTS note_chunks_after_delete"
+                            + " AFTER DELETE ON notes BEGIN"
+                            + " DELETE FROM note_chunks WHERE note_id = old._id; END;");
+                }
+            },
+            // 9 -> 10
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    addColumnIfMissing(db, NotePad.Notes.TABLE_NAME,
+                            NotePad.Notes.COLUMN_NAME_DELETED_AT, "INTEGER");
+                    NotePadProvider.DatabaseHelper.createDeletedIndex(db);
+                }
+            },
+            // 10 -> 11
+            new Migration() {
+                @Override
+                void migrate(SQLiteDatabase db, int targetVersion) {
+                    // The index held only the first chunk of a long body, read from the notes
+                    // table. It now keeps its own copy of the full bodies.
+                    dropFullTextIndex(db);
+                    NotePadProvider.DatabaseHelper.createFullTextIndex(db);
+                    NotePadProvider.DatabaseHelper.fillFullTextIndex(db);
+                }
+            },
+    };
+
+    private DatabaseMigrations() {
+    }
+
+    static boolean canMigrate(int oldVersion, int newVersion) {
+        return oldVersion >= OLDEST_MIGRATABLE_VERSION
+                && oldVersion <= newVersion
+                && newVersion - 1 <= MIGRATIONS.length;
+    }
+
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion,
+                        ProgressListener listener) {
+        if (!canMigrate(oldVersion, newVersion)) {
+            throw new IllegalArgumentException("No migration path from version " + oldVersion
+                    + " to " + newVersion);
+        }
+
+        int stepCount = newVersion - oldVersion;
+        for (int version = oldVersion; version < newVersion; version++) {
+            int step = version - oldVersion + 1;
+            if (listener != null) {
+                listener.onStepStarted(version, version + 1, step, stepCount);
+            }
+
+            long start = System.currentTimeMillis();
+            MIGRATIONS[version - 1].migrate(db, newVersion);
+            Log.i(TAG, "Migrated database from version " + version + " to " + (version + 1)
+                    + " in " + (System.currentTimeMillis() - start) + "ms ("
+                    + step + "/" + stepCount + ")");
+
+            if (listener != null) {
+                listener.onStepFinished(version, version + 1, step, stepCount);
+            }
+        }
+    }
+
+    /**
+     * The SQL expression that converts a legacy color column to a packed ARGB integer through
+     * the temporary color_map table.
+     */
+    private static String toColor(String column) {
+        return "CASE WHEN typeof(" + column + ") = 'integer' THEN " + column
+                + " ELSE coalesce((SELECT argb FROM color_map WHERE hex = " + column + "), "
+                + NotePad.Categories.DEFAULT_COLOR + ") END";
+    }
+
+    private static void dropFullTextIndex(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_before_update");
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_before_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_after_update");
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_after_insert");
+        db.execSQL("DROP TABLE IF EXISTS " + NotePad.Notes.FTS_TABLE_NAME);
+    }
+
+    static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = c.getColumnIndexOrThrow("name");
+            while (c.moveToNext()) {
+                if (column.equals(c.getString(nameIndex))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static boolean hasTempTable(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_temp_master"
+                + " WHERE type = 'table' AND name = ?", new String[] { table }) > 0;
+    }
+
+    private static void addColumnIfMissing(SQLiteDatabase db, String table, String column,
+                                           String definition) {
+        if (!hasColumn(db, table, column)) {
+            db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Keeps recently read notes in memory, keyed by note id, so that single-note queries do not go
+ * through SQLite each time.
+ *
+ * A cached row holds every column of the notes projection. The cache is bounded by the
+ * estimated size of the rows rather than their number, since a row holds up to
+ * {@link NotePad.Notes#BODY_CHUNK_SIZE} characters of body. Missing notes are not cached, so an
+ * insert never makes an entry stale.
+ *
+ * Writers call {@link #beginWrite()} before changing notes, evict the rows they change, and
+ * call {@link #endWrite()} once the change is committed. Rows read while a write is in flight
+ * are returned but not cached, so a row read before a commit cannot outlive it.
+ */
+final class NoteCache {
+
+    // The estimated bytes taken by a row and by each of its values, besides text.
+    private static final int ROW_OVERHEAD = 64;
+    private static final int VALUE_OVERHEAD = 16;
+
+    interface Loader {
+        /**
+         * Reads the cached columns of a note from the database, or returns null if there is no
+         * such note.
+         */
+        Object[] load(long noteId);
+    }
+
+    private final String[] mColumns;
+    private final int mCategoryIdIndex;
+    private final LruCache<Long, Object[]> mRows;
+
+    private int mWriters;
+    private long mGeneration;
+
+    NoteCache(String[] columns, int maxBytes) {
+        mColumns = columns;
+        mCategoryIdIndex = indexOf(columns, NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        mRows = new LruCache<Long, Object[]>(maxBytes) {
+            @Override
+            protected int sizeOf(Long noteId, Object[] row) {
+                int size = ROW_OVERHEAD;
+                for (Object value : row) {
+                    size += VALUE_OVERHEAD;
+                    if (value instanceof String) {
+                        size += 2 * ((String) value).length();
+                    } else if (value instanceof byte[]) {
+                        size += ((byte[]) value).length;
+                    }
+                }
+                return size;
+            }
+        };
+    }
+
+    String[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * Returns a cursor over the note with the given columns, or null if a column is not cached.
+     * The row is read through the cache again when the cursor is requeried.
+     */
+    Cursor query(long noteId, String[] projection, Loader loader) {
+        if (projection == null) {
+            projection = mColumns;
+        }
+        int[] indexes = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            indexes[i] = indexOf(mColumns, projection[i]);
+            if (indexes[i] < 0) {
+                return null;
+            }
+        }
+        return new NoteCursor(this, noteId, projection, indexes, loader);
+    }
+
+    /**
+     * Returns the cached row of the note, loading and caching it on a miss.
+     */
+    Object[] get(long noteId, Loader loader) {
+        Object[] row = mRows.get(noteId);
+        if (row != null) {
+            return row;
+        }
+
+        long generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        row = loader.load(noteId);
+        if (row != null) {
+            synchronized (this) {
+                if (mWriters == 0 && generation == mGeneration) {
+                    mRows.put(noteId, row);
+                }
+            }
+        }
+        return row;
+    }
+
+    synchronized void beginWrite() {
+        mWriters++;
+        mGeneration++;
+    }
+
+    synchronized void endWrite() {
+        mWriters--;
+        mGeneration++;
+    }
+
+    synchronized void evict(long noteId) {
+        mGeneration++;
+        mRows.remove(noteId);
+    }
+
+    synchronized void evictAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    /**
+     * Evicts the notes in the given category, whose rows show the category's name and color.
+     */
+    synchronized void evictCategory(long categoryId) {
+        mGeneration++;
+        for (Map.Entry<Long, Object[]> entry : mRows.snapshot().entrySet()) {
+            Object value = entry.getValue()[mCategoryIdIndex];
+            if (value instanceof Long && (Long) value == categoryId) {
+                mRows.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the cached notes, from least to most recently used.
+     */
+    Long[] cachedIds() {
+        return mRows.snapshot().keySet().toArray(new Long[0]);
+    }
+
+    Bundle stats() {
+        Bundle stats = new Bundle();
+        stats.putInt(NotePad.Notes.CACHE_STATS_HITS, mRows.hitCount());
+        stats.putInt(NotePad.Notes.CACHE_STATS_MISSES, mRows.missCount());
+        stats.putInt(NotePad.Notes.CACHE_STATS_SIZE, mRows.size());
+        return stats;
+    }
+
+    /**
+     * Reads the current row of a cursor into an array of Long, Double, String, byte[] or null
+     * values.
+     */
+    static Object[] readRow(Cursor c) {
+        Object[] row = new Object[c.getColumnCount()];
+        for (int i = 0; i < row.length; i++) {
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = c.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = c.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = c.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = c.getBlob(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A cursor over at most one cached row. Unlike a MatrixCursor it reads the row again on
+     * requery, which managed cursors rely on.
+     */
+    private static final class NoteCursor extends AbstractCursor {
+        private final NoteCache mCache;
+        private final long mNoteId;
+        private final String[] mColumnNames;
+        private final int[] mIndexes;
+        private final Loader mLoader;
+        private Object[] mRow;
+
+        NoteCursor(NoteCache cache, long noteId, String[] columnNames, int[] indexes,
+                   Loader loader) {
+            mCache = cache;
+            mNoteId = noteId;
+            mColumnNames = columnNames;
+            mIndexes = indexes;
+            mLoader = loader;
+            mRow = cache.get(noteId, loader);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public boolean requery() {
+            mRow = mCache.get(mNoteId, mLoader);
+            return super.requery();
+        }
+
+        private Object value(int column) {
+            checkPosition();
+            return mRow[mIndexes[column]];
+        }
+
+        @Override
+        public int getCount() {
+            return mRow != null ? 1 : 0;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return Cursor.FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return Cursor.FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return Cursor.FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return Cursor.FIELD_TYPE_BLOB;
+            }
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = value(column);
+            return value != null ? value.toString() : null;
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = value(column);
+            return value instanceof byte[] ? (byte[]) value : null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return value(column) == null;
+        }
+    }
+}
@@ -1,6 +1,20 @@
 package com.example.android.notepad;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import android.app.Activity;
 import android.content.ClipData;
 import android.content.ClipboardManager;
@@ -15,7 +29,16 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -36,7 +59,8 @@ public class NoteEditor extends Activity {
                     NotePad.Notes.COLUMN_NAME_NOTE,
                     NotePad.Notes.COLUMN_NAME_TODO_STATUS,
                     NotePad.Notes.COLUMN_NAME_CATEGORY,
-                    NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+                    NotePad.Notes.COLUMN_NAME_CHUNK_COUNT
             };
 
     private static final String ORIGINAL_CONTENT = "origContent";
@@ -44,6 +68,12 @@ public class NoteEditor extends Activity {
     private static final int STATE_EDIT = 0;
     private static final int STATE_INSERT = 1;
 
+    // How long typing has to pause before the note is saved.
+    private static final long AUTOSAVE_DELAY_MS = 1000;
+
+    // Runs all note writes in order, off the UI thread.
+    private static final ExecutorService sWriteExecutor = Executors.newSingleThreadExecutor();
+
     private int mState;
     private Uri mUri;
     private Cursor mCursor;
@@ -54,34 +84,100 @@ public class NoteEditor extends Activity {
     private String mOriginalContent;
     private int mTodoStatus;
     private String mCategory;
-    private String mCategoryColor;
+    private int mCategoryColor;
+
+    private final Handler mHandler = new Handler();
+    private Future<?> mLastWrite;
+
+    // Edit generations: each edit bumps a counter, and a save records the counter it wrote.
+    private int mTitleGeneration;
+    private int mSavedTitleGeneration;
+    private int mTextGeneration;
+    private int mSavedTextGeneration;
+    private boolean mIgnoreEdits;
+    private boolean mTextEdited;
+
+    // Set once the note has been opened with a body stored in chunks, which is never copied
+    // into mOriginalContent, so it cannot be reverted.
+    private boolean mOpenedChunked;
+
+    // Reads a chunked body in the background. The body cannot be edited until it is shown.
+    private BodyLoadTask mBodyLoad;
+
+    private final Runnable mAutosave = new Runnable() {
+        @Override
+        public void run() {
+            saveChanges();
+        }
+    };
+
+    private final ThemeManager.Listener mThemeListener = new ThemeManager.Listener() {
+        @Override
+        public void onThemeChanged(ThemeManager.Theme theme) {
+            ThemeManager.applyBackgroundColor(NoteEditor.this, theme);
+            applyFontSize();
+        }
+    };
 
     public static class LinedEditText extends EditText {
         private Rect mRect;
+        private Rect mClip;
         private Paint mPaint;
+        private float[] mLines = new float[0];
+        private boolean mDrawVisibleLinesOnly = true;
 
         public LinedEditText(Context context, AttributeSet attrs) {
             super(context, attrs);
 
             mRect = new Rect();
+            mClip = new Rect();
             mPaint = new Paint();
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setColor(0x800000FF);
         }
 
+        /**
+         * Sets whether rules are drawn only for the lines inside the canvas clip, which keeps the
+         * cost of a frame independent of the length of the note. On by default.
+         */
+        public void setDrawVisibleLinesOnly(boolean visibleOnly) {
+            mDrawVisibleLinesOnly = visibleOnly;
+            invalidate();
+        }
+
         @Override
         protected void onDraw(Canvas canvas) {
 
-            int count = getLineCount();
-
-            Rect r = mRect;
-            Paint paint = mPaint;
-
-            for (int i = 0; i < count; i++) {
+            int first = 0;
+            int last = getLineCount() - 1;
+
+            Layout layout = getLayout();
+            if (mDrawVisibleLinesOnly && layout != null) {
+                if (!canvas.getClipBounds(mClip)) {
+                    last = -1;
+                } else {
+                    int offset = getTotalPaddingTop();
+                    first = layout.getLineForVertical(mClip.top - offset);
+                    last = layout.getLineForVertical(mClip.bottom - offset);
+                }
+            }
 
-                int baseline = getLineBounds(i, r);
+            int count = last - first + 1;
+            if (count > 0) {
+                if (mLines.length < count * 4) {
+                    mLines = new float[count * 4];
+                }
 
-                canvas.drawLine(r.left, baseline + 1, r.right, baseline + 1, paint);
+                Rect r = mRect;
+                float[] lines = mLines;
+                for (int i = 0; i < count; i++) {
+                    int baseline = getLineBounds(first + i, r);
+                    lines[i * 4] = r.left;
+                    lines[i * 4 + 1] = baseline + 1;
+                    lines[i * 4 + 2] = r.right;
+                    lines[i * 4 + 3] = baseline + 1;
+                }
+                canvas.drawLines(lines, 0, count * 4, mPaint);
             }
 
             super.onDraw(canvas);
@@ -153,9 +249,29 @@ public class NoteEditor extends Activity {
         mTodoIcon = (ImageView) findViewById(R.id.todo_icon);
         mCategoryText = (TextView) findViewById(R.id.category_text);
 
-        ThemeManager.applyFontSize(mTitleText, this);
-        ThemeManager.applyFontSize(mText, this);
-        ThemeManager.applyFontSize(mCategoryText, this);
+        applyFontSize();
+        ThemeManager.addListener(mThemeListener);
+
+        mTitleText.addTextChangedListener(new EditWatcher() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (!mIgnoreEdits) {
+                    mTitleGeneration++;
+                    scheduleAutosave();
+                }
+            }
+        });
+
+        mText.addTextChangedListener(new EditWatcher() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (!mIgnoreEdits) {
+                    mTextGeneration++;
+                    mTextEdited = true;
+                    scheduleAutosave();
+                }
+            }
+        });
 
         mTodoIcon.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -180,6 +296,38 @@ public class NoteEditor extends Activity {
     protected void onResume() {
         super.onResume();
 
+        // The editor already shows what a pending save is writing, so rather than wait for the
+        // save here, the note is read back once it lands.
+        if (mLastWrite != null && !mLastWrite.isDone()) {
+            loadNoteAfterWrites();
+        } else {
+            loadNote();
+        }
+    }
+
+    /**
+     * Reads the note back once the writes made so far have landed, unless it was edited in the
+     * meantime. The wait happens on the write thread, so the UI thread never blocks on a save.
+     */
+    private void loadNoteAfterWrites() {
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCursor != null && !isFinishing()
+                                && mTitleGeneration == mSavedTitleGeneration
+                                && mTextGeneration == mSavedTextGeneration) {
+                            loadNote();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void loadNote() {
         if (mCursor == null || mCursor.isClosed()) {
             mCursor = managedQuery(
                     mUri,
@@ -216,13 +364,34 @@ public class NoteEditor extends Activity {
 
         int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
         String title = mCursor.getString(colTitleIndex);
-        mTitleText.setTextKeepState(title != null ? title : "");
-
         int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
         String note = mCursor.getString(colNoteIndex);
+        int colChunkCountIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CHUNK_COUNT);
+        boolean chunked = colChunkCountIndex != -1 && mCursor.getInt(colChunkCountIndex) > 0;
+
+        // The note column holds only the first chunk of a long body. It is shown while the rest
+        // is streamed in the background.
+        if (mBodyLoad != null) {
+            mBodyLoad.cancel(false);
+            mBodyLoad = null;
+        }
+        if (chunked) {
+            mOpenedChunked = true;
+            mText.setEnabled(false);
+            mBodyLoad = new BodyLoadTask(getContentResolver(), mUri);
+            mBodyLoad.execute();
+        } else {
+            mText.setEnabled(true);
+        }
+
+        mIgnoreEdits = true;
+        mTitleText.setTextKeepState(title != null ? title : "");
         mText.setTextKeepState(note != null ? note : "");
+        mIgnoreEdits = false;
+        mSavedTitleGeneration = mTitleGeneration;
+        mSavedTextGeneration = mTextGeneration;
 
-        if (mOriginalContent == null) {
+        if (mOriginalContent == null && !mOpenedChunked) {
             mOriginalContent = note;
         }
 
@@ -242,9 +411,9 @@ public class NoteEditor extends Activity {
 
         int colCategoryColorIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR);
         if (colCategoryColorIndex != -1) {
-            mCategoryColor = mCursor.getString(colCategoryColorIndex);
+            mCategoryColor = mCursor.getInt(colCategoryColorIndex);
         } else {
-            mCategoryColor = "#808080";
+            mCategoryColor = 0xFF808080;
         }
 
         updateTodoIcon();
@@ -260,26 +429,29 @@ public class NoteEditor extends Activity {
     protected void onPause() {
         super.onPause();
 
-        if (mCursor != null) {
-
-            String text = mText.getText().toString();
-            int length = text.length();
+        mHandler.removeCallbacks(mAutosave);
 
-            if (isFinishing() && (length == 0)) {
+        if (mCursor != null) {
+            if (isFinishing() && mText.length() == 0) {
                 setResult(RESULT_CANCELED);
                 deleteNote();
-
-            } else if (mState == STATE_EDIT) {
-                String title = mTitleText.getText().toString();
-                updateNote(text, title);
-            } else if (mState == STATE_INSERT) {
-                String title = mTitleText.getText().toString();
-                updateNote(text, title);
+            } else {
+                saveChanges();
                 mState = STATE_EDIT;
             }
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mBodyLoad != null) {
+            mBodyLoad.cancel(false);
+            mBodyLoad = null;
+        }
+        ThemeManager.removeListener(mThemeListener);
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -305,14 +477,7 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if ((savedNote == null && currentNote == null) || (savedNote != null && savedNote.equals(currentNote))) {
-            menu.findItem(R.id.menu_revert).setVisible(false);
-        } else {
-            menu.findItem(R.id.menu_revert).setVisible(true);
-        }
+        menu.findItem(R.id.menu_revert).setVisible(mTextEdited && mOriginalContent != null);
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -324,9 +489,7 @@ public class NoteEditor extends Activity {
             return true;
         }
         if(id== R.id.menu_save) {
-            String title = mTitleText.getText().toString();
-            String text = mText.getText().toString();
-            updateNote(text, title);
+            saveChanges();
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
@@ -339,19 +502,15 @@ public class NoteEditor extends Activity {
             updateTodoMenuItem(item);
         } else if (id == R.id.menu_font_size_small) {
             ThemeManager.setFontSizeMode(this, ThemeManager.FONT_SIZE_SMALL);
-            applyFontSize();
             return true;
         } else if (id == R.id.menu_font_size_medium) {
             ThemeManager.setFontSizeMode(this, ThemeManager.FONT_SIZE_MEDIUM);
-            applyFontSize();
             return true;
         } else if (id == R.id.menu_font_size_large) {
             ThemeManager.setFontSizeMode(this, ThemeManager.FONT_SIZE_LARGE);
-            applyFontSize();
             return true;
         } else if (id == R.id.menu_font_size_xlarge) {
             ThemeManager.setFontSizeMode(this, ThemeManager.FONT_SIZE_XLARGE);
-            applyFontSize();
             return true;
         }
         return super.onOptionsItemSelected(item);
@@ -392,36 +551,24 @@ public class NoteEditor extends Activity {
     }
 
     private void showCategorySelection() {
-        Cursor categoryCursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{NotePad.Categories.COLUMN_NAME_NAME, NotePad.Categories.COLUMN_NAME_COLOR},
-                null,
-                null,
-                NotePad.Categories.COLUMN_NAME_NAME + " ASC"
-        );
+        CategoryRegistry.Snapshot snapshot = CategoryRegistry.get(this).getSnapshot();
 
-        final ArrayList<String> categories = new ArrayList<>();
-        final ArrayList<String> categoryColors = new ArrayList<>();
+        final ArrayList<String> categories = new ArrayList<>(snapshot.size() + 1);
+        final ArrayList<Integer> categoryColors = new ArrayList<>(snapshot.size() + 1);
 
         categories.add(getString(R.string.default_category));
-        categoryColors.add("#808080");
-
-        if (categoryCursor != null && categoryCursor.moveToFirst()) {
-            do {
-                String categoryName = categoryCursor.getString(categoryCursor.getColumnIndex(NotePad.Categories.COLUMN_NAME_NAME));
-                String categoryColor = categoryCursor.getString(categoryCursor.getColumnIndex(NotePad.Categories.COLUMN_NAME_COLOR));
-                if (categoryName != null && !categoryName.equals(getString(R.string.default_category))) {
-                    categories.add(categoryName);
-                    categoryColors.add(categoryColor);
-                }
-            } while (categoryCursor.moveToNext());
-            categoryCursor.close();
-        } else if (categoryCursor != null) {
-            categoryCursor.close();
+        categoryColors.add(0xFF808080);
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            String categoryName = snapshot.getName(i);
+            if (categoryName != null && !categoryName.equals(getString(R.string.default_category))) {
+                categories.add(categoryName);
+                categoryColors.add(snapshot.getColor(i));
+            }
         }
 
         final String[] categoryArray = categories.toArray(new String[categories.size()]);
-        final String[] categoryColorArray = categoryColors.toArray(new String[categoryColors.size()]);
+        final Integer[] categoryColorArray = categoryColors.toArray(new Integer[categoryColors.size()]);
 
         android.app.AlertDialog.Builder builder = new android.app.AlertDialog.Builder(this);
         builder.setTitle("选择分类");
@@ -431,6 +578,11 @@ public class NoteEditor extends Activity {
                 mCategory = categoryArray[which];
                 mCategoryColor = categoryColorArray[which];
                 updateCategoryDisplay();
+
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, mCategory);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+                writeNote(values);
             }
         });
         builder.show();
@@ -440,13 +592,7 @@ public class NoteEditor extends Activity {
         ContentValues values = new ContentValues();
         values.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, mTodoStatus);
         values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
-
-        getContentResolver().update(
-                mUri,
-                values,
-                null,
-                null
-        );
+        writeNote(values);
     }
 
     private void updateTodoMenuItem(MenuItem item) {
@@ -525,7 +671,6 @@ public class NoteEditor extends Activity {
         values.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, mTodoStatus);
 
         values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, mCategory);
-        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR, mCategoryColor);
 
         getContentResolver().update(
                 mUri,
@@ -538,13 +683,14 @@ public class NoteEditor extends Activity {
     }
 
     private final void cancelNote() {
+        mHandler.removeCallbacks(mAutosave);
         if (mCursor != null) {
-            if (mState == STATE_EDIT) {
+            if (mState == STATE_EDIT && mOriginalContent != null) {
                 mCursor.close();
                 mCursor = null;
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                writeNote(values);
             } else if (mState == STATE_INSERT) {
                 deleteNote();
             }
@@ -554,22 +700,249 @@ public class NoteEditor extends Activity {
     }
 
     private final void deleteNote() {
+        mHandler.removeCallbacks(mAutosave);
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
-            getContentResolver().delete(mUri, null, null);
+            final ContentResolver resolver = getContentResolver();
+            final Uri uri = mUri;
+            mLastWrite = sWriteExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    resolver.delete(uri, null, null);
+                }
+            });
+            mIgnoreEdits = true;
             mText.setText("");
+            mIgnoreEdits = false;
+        }
+    }
+
+    private void scheduleAutosave() {
+        mHandler.removeCallbacks(mAutosave);
+        mHandler.postDelayed(mAutosave, AUTOSAVE_DELAY_MS);
+    }
+
+    /**
+     * Writes the title and body if they were edited since the last save. Unchanged fields are
+     * not copied out of the editor or sent to the provider, and nothing is written if neither
+     * changed.
+     */
+    private void saveChanges() {
+        mHandler.removeCallbacks(mAutosave);
+        if (mCursor == null) {
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        if (mTitleGeneration != mSavedTitleGeneration) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mTitleText.getText().toString());
+            mSavedTitleGeneration = mTitleGeneration;
+        }
+        if (mTextGeneration != mSavedTextGeneration) {
+            if (mText.length() > NotePad.Notes.BODY_CHUNK_SIZE) {
+                writeBody();
+            } else {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mText.getText().toString());
+            }
+            mSavedTextGeneration = mTextGeneration;
+        }
+        if (values.size() == 0) {
+            return;
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+        writeNote(values);
+    }
+
+    /**
+     * Streams a body stored in chunks into the editor once it has been read. Until then the
+     * editor shows the first chunk and takes no text edits, so nothing typed is lost.
+     */
+    private class BodyLoadTask extends AsyncTask<Void, Void, CharSequence> {
+        private final ContentResolver mResolver;
+        private final Uri mNoteUri;
+
+        BodyLoadTask(ContentResolver resolver, Uri noteUri) {
+            mResolver = resolver;
+            mNoteUri = noteUri;
+        }
+
+        @Override
+        protected CharSequence doInBackground(Void... params) {
+            return readBody(mResolver, mNoteUri);
+        }
+
+        @Override
+        protected void onPostExecute(CharSequence body) {
+            if (mBodyLoad != this || isFinishing()) {
+                return;
+            }
+            mBodyLoad = null;
+            if (body == null) {
+                setTitle(getText(R.string.error_title));
+                mIgnoreEdits = true;
+                mText.setText(getText(R.string.error_message));
+                mIgnoreEdits = false;
+                return;
+            }
+            mIgnoreEdits = true;
+            mText.setTextKeepState(body);
+            mIgnoreEdits = false;
+            mSavedTextGeneration = mTextGeneration;
+            mText.setEnabled(true);
+        }
+    }
+
+    /**
+     * Reads a body stored in chunks through the note's body stream, or returns null if it
+     * cannot be read. The body is appended to the editable buffer as it arrives.
+     */
+    private static CharSequence readBody(ContentResolver resolver, Uri noteUri) {
+        Uri bodyUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_BODY);
+        SpannableStringBuilder body = new SpannableStringBuilder();
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(resolver.openInputStream(bodyUri), "UTF-8");
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                body.append(CharBuffer.wrap(buffer, 0, read));
+            }
+            return body;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read note " + noteUri, e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a body too long for the note column through the note's body stream, on the write
+     * thread. The text is copied out of the editor one chunk at a time, so the full text is
+     * never held twice. An edit made meanwhile abandons the write, and the save it schedules
+     * writes the body again.
+     */
+    private void writeBody() {
+        final int generation = mTextGeneration;
+        final ContentResolver resolver = getContentResolver();
+        final Uri bodyUri = Uri.withAppendedPath(mUri, NotePad.Notes.PATH_SEGMENT_BODY);
+        mLastWrite = sWriteExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                char[] window = new char[NotePad.Notes.BODY_CHUNK_SIZE];
+                ParcelFileDescriptor output = null;
+                try {
+                    output = resolver.openFileDescriptor(bodyUri, "w");
+                    Writer writer = new OutputStreamWriter(
+                            new FileOutputStream(output.getFileDescriptor()), "UTF-8");
+                    int start = 0;
+                    int count;
+                    while ((count = copyText(generation, start, window)) > 0) {
+                        writer.write(window, 0, count);
+                        start += count;
+                    }
+                    writer.flush();
+                    output.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to save note " + bodyUri, e);
+                    abandonBody(output, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the text from start into window on the main thread, where it cannot change while
+     * it is read, and returns the number of chars copied. Throws if the text was edited after
+     * the given generation, since the chunks written so far no longer match it.
+     */
+    private int copyText(final int generation, final int start, final char[] window)
+            throws IOException {
+        FutureTask<Integer> copy = new FutureTask<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                if (mTextGeneration != generation) {
+                    return -1;
+                }
+                int end = Math.min(mText.length(), start + window.length);
+                if (end <= start) {
+                    return 0;
+                }
+                TextUtils.getChars(mText.getText(), start, end, window, 0);
+                return end - start;
+            }
+        });
+        mHandler.post(copy);
+        int count;
+        try {
+            count = copy.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (count < 0) {
+            throw new IOException("Note was edited while it was saved");
+        }
+        return count;
+    }
+
+    /**
+     * Closes a body stream that failed partway. From API 19 the provider is told about the
+     * error and keeps the old body; before that, the part written is stored.
+     */
+    private static void abandonBody(ParcelFileDescriptor output, IOException error) {
+        if (output == null) {
+            return;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                output.closeWithError(error.toString());
+            } else {
+                output.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Updates the note on the write thread. Writes are applied in the order they are made.
+     */
+    private void writeNote(final ContentValues values) {
+        final ContentResolver resolver = getContentResolver();
+        final Uri uri = mUri;
+        mLastWrite = sWriteExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resolver.update(uri, values, null, null);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to save note " + uri, e);
+                }
+            }
+        });
+    }
+
+    private abstract static class EditWatcher implements TextWatcher {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
         }
     }
 
     private void updateCategoryDisplay() {
         if (mCategoryText != null) {
             mCategoryText.setText(mCategory);
-            try {
-                mCategoryText.setBackgroundColor(android.graphics.Color.parseColor(mCategoryColor));
-            } catch (IllegalArgumentException e) {
-                mCategoryText.setBackgroundColor(android.graphics.Color.parseColor("#9E9E9E"));
-            }
+            mCategoryText.setBackgroundColor(mCategoryColor);
         }
     }
 
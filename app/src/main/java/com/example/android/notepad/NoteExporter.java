@@ -0,0 +1,299 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Writes notes to a stream as NDJSON, one object per line, or as CSV with a header row.
+ *
+ * Notes are read in pages of {@link #PAGE_SIZE} rows in id order, each page selected by the id
+ * of the last exported note, and long bodies are copied one chunk at a time. Memory use
+ * therefore stays the same whatever the number or length of the notes.
+ */
+final class NoteExporter {
+
+    static final int PAGE_SIZE = 500;
+
+    private static final String[] FIELDS = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_TODO_STATUS,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+    };
+
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_TITLE = 1;
+    private static final int INDEX_NOTE = 2;
+    private static final int INDEX_CREATE_DATE = 3;
+    private static final int INDEX_MODIFICATION_DATE = 4;
+    private static final int INDEX_TODO_STATUS = 5;
+    private static final int INDEX_CATEGORY = 6;
+    private static final int INDEX_CHUNK_COUNT = 7;
+
+    private static final String PAGE_SQL = "SELECT "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+            + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_TODO_STATUS + ", "
+            + "(SELECT " + NotePad.Categories.COLUMN_NAME_NAME + " FROM "
+            + NotePad.Categories.TABLE_NAME + " WHERE " + NotePad.Categories.TABLE_NAME + "."
+            + NotePad.Categories._ID + " = " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "), "
+            + "(SELECT count(*) FROM " + NotePad.Notes.CHUNKS_TABLE_NAME + " WHERE note_id = "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ")"
+            + " FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " > ? AND " + NotePadProvider.NOT_DELETED;
+
+    private static final String CHUNKS_SQL = "SELECT text FROM "
+            + NotePad.Notes.CHUNKS_TABLE_NAME + " WHERE note_id = ? ORDER BY seq";
+
+    private final SQLiteDatabase mDb;
+    private final boolean mCsv;
+    private final String mPageSql;
+    private final ArrayList<String> mFilterArgs = new ArrayList<String>();
+
+    /**
+     * Creates an exporter for the notes that match the export options in opts. If categoryId
+     * is not null, only notes in that category are exported.
+     */
+    NoteExporter(SQLiteDatabase db, String mimeType, Bundle opts, Long categoryId) {
+        mDb = db;
+        mCsv = NotePad.Notes.EXPORT_TYPE_CSV.equals(mimeType);
+
+        StringBuilder sql = new StringBuilder(PAGE_SQL);
+        if (opts != null && opts.containsKey(NotePad.Notes.EXPORT_OPTION_CATEGORY_ID)) {
+            categoryId = opts.getLong(NotePad.Notes.EXPORT_OPTION_CATEGORY_ID);
+        }
+        if (categoryId != null) {
+            addFilter(sql, NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?", categoryId);
+        }
+        if (opts != null) {
+            if (opts.containsKey(NotePad.Notes.EXPORT_OPTION_TODO_STATUS)) {
+                addFilter(sql, NotePad.Notes.COLUMN_NAME_TODO_STATUS + " = ?",
+                        opts.getInt(NotePad.Notes.EXPORT_OPTION_TODO_STATUS));
+            }
+            if (opts.containsKey(NotePad.Notes.EXPORT_OPTION_MODIFIED_SINCE)) {
+                addFilter(sql, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " >= ?",
+                        opts.getLong(NotePad.Notes.EXPORT_OPTION_MODIFIED_SINCE));
+            }
+            if (opts.containsKey(NotePad.Notes.EXPORT_OPTION_MODIFIED_BEFORE)) {
+                addFilter(sql, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ?",
+                        opts.getLong(NotePad.Notes.EXPORT_OPTION_MODIFIED_BEFORE));
+            }
+        }
+        sql.append(" ORDER BY ").append(NotePad.Notes._ID).append(" LIMIT ").append(PAGE_SIZE);
+        mPageSql = sql.toString();
+    }
+
+    private void addFilter(StringBuilder sql, String filter, Object arg) {
+        sql.append(" AND ").append(filter);
+        mFilterArgs.add(String.valueOf(arg));
+    }
+
+    /**
+     * Writes every matching note to out and returns the number of notes written.
+     */
+    int export(Writer out) throws IOException {
+        if (mCsv) {
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write(FIELDS[i]);
+            }
+            out.write("\r\n");
+        }
+
+        String[] args = new String[mFilterArgs.size() + 1];
+        for (int i = 0; i < mFilterArgs.size(); i++) {
+            args[i + 1] = mFilterArgs.get(i);
+        }
+
+        int count = 0;
+        long lastId = 0;
+        while (true) {
+            args[0] = Long.toString(lastId);
+            Cursor page = mDb.rawQuery(mPageSql, args);
+            int rows;
+            try {
+                rows = page.getCount();
+                while (page.moveToNext()) {
+                    if (mCsv) {
+                        writeCsvRow(page, out);
+                    } else {
+                        writeJsonRow(page, out);
+                    }
+                    lastId = page.getLong(INDEX_ID);
+                }
+            } finally {
+                page.close();
+            }
+            count += rows;
+            if (rows < PAGE_SIZE) {
+                return count;
+            }
+        }
+    }
+
+    private void writeJsonRow(Cursor c, Writer out) throws IOException {
+        out.write("{\"");
+        out.write(FIELDS[INDEX_ID]);
+        out.write("\":");
+        out.write(Long.toString(c.getLong(INDEX_ID)));
+        writeJsonString(out, FIELDS[INDEX_TITLE], c.getString(INDEX_TITLE));
+
+        out.write(",\"");
+        out.write(FIELDS[INDEX_NOTE]);
+        out.write("\":\"");
+        escapeJson(out, c.getString(INDEX_NOTE));
+        if (c.getInt(INDEX_CHUNK_COUNT) > 0) {
+            Cursor chunks = queryChunks(c.getLong(INDEX_ID));
+            try {
+                while (chunks.moveToNext()) {
+                    escapeJson(out, chunks.getString(0));
+                }
+            } finally {
+                chunks.close();
+            }
+        }
+        out.write('"');
+
+        writeJsonNumber(out, FIELDS[INDEX_CREATE_DATE], c, INDEX_CREATE_DATE);
+        writeJsonNumber(out, FIELDS[INDEX_MODIFICATION_DATE], c, INDEX_MODIFICATION_DATE);
+        writeJsonNumber(out, FIELDS[INDEX_TODO_STATUS], c, INDEX_TODO_STATUS);
+        writeJsonString(out, FIELDS[INDEX_CATEGORY], c.getString(INDEX_CATEGORY));
+        out.write("}\n");
+    }
+
+    private static void writeJsonString(Writer out, String name, String value)
+            throws IOException {
+        out.write(",\"");
+        out.write(name);
+        out.write("\":");
+        if (value == null) {
+            out.write("null");
+        } else {
+            out.write('"');
+            escapeJson(out, value);
+            out.write('"');
+        }
+    }
+
+    private static void writeJsonNumber(Writer out, String name, Cursor c, int index)
+            throws IOException {
+        out.write(",\"");
+        out.write(name);
+        out.write("\":");
+        out.write(c.isNull(index) ? "null" : Long.toString(c.getLong(index)));
+    }
+
+    private static void escapeJson(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char ch = value.charAt(i);
+            if (ch != '"' && ch != '\\' && ch >= 0x20) {
+                continue;
+            }
+            out.write(value, start, i - start);
+            start = i + 1;
+            switch (ch) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    out.write("\\u");
+                    String hex = Integer.toHexString(ch);
+                    for (int pad = hex.length(); pad < 4; pad++) {
+                        out.write('0');
+                    }
+                    out.write(hex);
+                    break;
+            }
+        }
+        out.write(value, start, length - start);
+    }
+
+    private void writeCsvRow(Cursor c, Writer out) throws IOException {
+        out.write(Long.toString(c.getLong(INDEX_ID)));
+        out.write(',');
+        writeCsvString(out, c.getString(INDEX_TITLE));
+        out.write(',');
+
+        // The body is always quoted, so its chunks can be escaped one at a time.
+        out.write('"');
+        escapeCsv(out, c.getString(INDEX_NOTE));
+        if (c.getInt(INDEX_CHUNK_COUNT) > 0) {
+            Cursor chunks = queryChunks(c.getLong(INDEX_ID));
+            try {
+                while (chunks.moveToNext()) {
+                    escapeCsv(out, chunks.getString(0));
+                }
+            } finally {
+                chunks.close();
+            }
+        }
+        out.write('"');
+
+        for (int index = INDEX_CREATE_DATE; index <= INDEX_TODO_STATUS; index++) {
+            out.write(',');
+            if (!c.isNull(index)) {
+                out.write(Long.toString(c.getLong(index)));
+            }
+        }
+        out.write(',');
+        writeCsvString(out, c.getString(INDEX_CATEGORY));
+        out.write("\r\n");
+    }
+
+    private static void writeCsvString(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        out.write('"');
+        escapeCsv(out, value);
+        out.write('"');
+    }
+
+    private static void escapeCsv(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        int start = 0;
+        int quote;
+        while ((quote = value.indexOf('"', start)) != -1) {
+            out.write(value, start, quote + 1 - start);
+            out.write('"');
+            start = quote + 1;
+        }
+        out.write(value, start, value.length() - start);
+    }
+
+    private Cursor queryChunks(long noteId) {
+        return mDb.rawQuery(CHUNKS_SQL, new String[] { Long.toString(noteId) });
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports notes from an NDJSON or CSV stream in the format written by {@link NoteExporter}.
+ *
+ * Parsing and inserting are pipelined: a parser thread turns the stream into batches of
+ * {@link #BATCH_SIZE} notes and hands them over through a small bounded queue, while the calling
+ * thread inserts each batch in its own transaction with one compiled statement. Note ids in the
+ * input are ignored, and category names are resolved through a cache, creating the categories
+ * that do not exist yet.
+ */
+final class NoteImporter {
+
+    static final int BATCH_SIZE = 1000;
+
+    // The number of parsed batches that may wait for the inserter.
+    private static final int QUEUE_CAPACITY = 4;
+
+    private static final ArrayList<ContentValues> END_OF_INPUT = new ArrayList<ContentValues>();
+
+    interface ProgressListener {
+        void onProgress(int imported);
+    }
+
+    private final SQLiteDatabase mDb;
+    private final boolean mCsv;
+    private final String mDefaultCategory;
+    private final HashMap<String, Long> mCategoryIds = new HashMap<String, Long>();
+    private boolean mCreatedCategories;
+
+    private final ArrayBlockingQueue<ArrayList<ContentValues>> mBatches =
+            new ArrayBlockingQueue<ArrayList<ContentValues>>(QUEUE_CAPACITY);
+    private volatile boolean mCancelled;
+    private volatile Exception mParseError;
+
+    NoteImporter(SQLiteDatabase db, String mimeType, String defaultCategory) {
+        mDb = db;
+        mCsv = NotePad.Notes.EXPORT_TYPE_CSV.equals(mimeType);
+        mDefaultCategory = defaultCategory;
+    }
+
+    boolean createdCategories() {
+        return mCreatedCategories;
+    }
+
+    /**
+     * Imports every note in the stream and returns the number of notes imported. Batches that
+     * were inserted before an error are kept.
+     */
+    int importNotes(final Reader in, ProgressListener listener) throws IOException {
+        Thread parser = new Thread("NoteImportParser") {
+            @Override
+            public void run() {
+                try {
+                    if (mCsv) {
+                        parseCsv(in);
+                    } else {
+                        parseJson(in);
+                    }
+                } catch (Exception e) {
+                    mParseError = e;
+                } finally {
+                    hand(END_OF_INPUT);
+                }
+            }
+        };
+        parser.start();
+
+        int imported = 0;
+        try {
+            loadCategories();
+            SQLiteStatement insert = mDb.compileStatement("INSERT INTO "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_TODO_STATUS + ", "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ") VALUES (?, ?, ?, ?, ?, ?)");
+            try {
+                ArrayList<ContentValues> batch;
+                while ((batch = mBatches.take()) != END_OF_INPUT) {
+                    insertBatch(insert, batch);
+                    imported += batch.size();
+                    if (listener != null) {
+                        listener.onProgress(imported);
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted");
+        } finally {
+            mCancelled = true;
+            mBatches.clear();
+        }
+
+        if (mParseError instanceof IOException) {
+            throw (IOException) mParseError;
+        } else if (mParseError != null) {
+            throw new IOException("Malformed import after " + imported + " notes", mParseError);
+        }
+        return imported;
+    }
+
+    private void insertBatch(SQLiteStatement insert, ArrayList<ContentValues> batch) {
+        long now = System.currentTimeMillis();
+        String untitled = Resources.getSystem().getString(android.R.string.untitled);
+
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (ContentValues note : batch) {
+                String title = note.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+                Long created = note.getAsLong(NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+                Long modified = note.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+                Integer todoStatus = note.getAsInteger(NotePad.Notes.COLUMN_NAME_TODO_STATUS);
+                String longBody = NotePadProvider.takeLongBody(note);
+                String body = note.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+
+                insert.bindString(1, title != null ? title : untitled);
+                insert.bindString(2, body != null ? body : "");
+                insert.bindLong(3, created != null ? created : now);
+                insert.bindLong(4, modified != null ? modified : now);
+                insert.bindLong(5, todoStatus != null ? todoStatus : 0);
+                insert.bindLong(6, getCategoryId(
+                        note.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY)));
+                long noteId = insert.executeInsert();
+
+                if (longBody != null) {
+                    NotePadProvider.writeLongBody(mDb, noteId, longBody, body.length());
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void loadCategories() {
+        Cursor c = mDb.query(NotePad.Categories.TABLE_NAME,
+                new String[] { NotePad.Categories.COLUMN_NAME_NAME, NotePad.Categories._ID },
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                mCategoryIds.put(c.getString(0), c.getLong(1));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private long getCategoryId(String name) {
+        if (name == null || name.isEmpty()) {
+            name = mDefaultCategory;
+        }
+        Long id = mCategoryIds.get(name);
+        if (id == null) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Categories.COLUMN_NAME_NAME, name);
+            values.put(NotePad.Categories.COLUMN_NAME_COLOR, NotePad.Categories.DEFAULT_COLOR);
+            id = mDb.insertOrThrow(NotePad.Categories.TABLE_NAME, null, values);
+            mCategoryIds.put(name, id);
+            mCreatedCategories = true;
+        }
+        return id;
+    }
+
+    /**
+     * Hands a batch to the inserter, waiting while the queue is full. Returns false if the
+     * import was stopped.
+     */
+    private boolean hand(ArrayList<ContentValues> batch) {
+        try {
+            while (!mCancelled) {
+                if (mBatches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void parseJson(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        // Lenient mode reads a sequence of top-level objects, one per line.
+        reader.setLenient(true);
+
+        ArrayList<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
+        while (reader.peek() != JsonToken.END_DOCUMENT) {
+            ContentValues note = new ContentValues();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (NotePad.Notes.COLUMN_NAME_TITLE.equals(name)
+                        || NotePad.Notes.COLUMN_NAME_NOTE.equals(name)
+                        || NotePad.Notes.COLUMN_NAME_CATEGORY.equals(name)) {
+                    note.put(name, reader.nextString());
+                } else if (NotePad.Notes.COLUMN_NAME_CREATE_DATE.equals(name)
+                        || NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE.equals(name)
+                        || NotePad.Notes.COLUMN_NAME_TODO_STATUS.equals(name)) {
+                    note.put(name, reader.nextLong());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            batch.add(note);
+            if (batch.size() == BATCH_SIZE) {
+                if (!hand(batch)) {
+                    return;
+                }
+                batch = new ArrayList<ContentValues>(BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            hand(batch);
+        }
+    }
+
+    private void parseCsv(Reader in) throws IOException {
+        CsvParser parser = new CsvParser(in);
+        ArrayList<String> header = parser.nextRecord();
+        if (header == null) {
+            return;
+        }
+
+        ArrayList<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
+        ArrayList<String> record;
+        while ((record = parser.nextRecord()) != null) {
+            if (record.size() == 1 && record.get(0).isEmpty()) {
+                continue;
+            }
+            ContentValues note = new ContentValues();
+            for (int i = 0; i < record.size() && i < header.size(); i++) {
+                String name = header.get(i);
+                String value = record.get(i);
+                if (NotePad.Notes.COLUMN_NAME_TITLE.equals(name)
+                        || NotePad.Notes.COLUMN_NAME_NOTE.equals(name)
+                        || NotePad.Notes.COLUMN_NAME_CATEGORY.equals(name)) {
+                    note.put(name, value);
+                } else if (!value.isEmpty()
+                        && (NotePad.Notes.COLUMN_NAME_CREATE_DATE.equals(name)
+                        || NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE.equals(name)
+                        || NotePad.Notes.COLUMN_NAME_TODO_STATUS.equals(name))) {
+                    note.put(name, Long.parseLong(value));
+                }
+            }
+
+            batch.add(note);
+            if (batch.size() == BATCH_SIZE) {
+                if (!hand(batch)) {
+                    return;
+                }
+                batch = new ArrayList<ContentValues>(BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            hand(batch);
+        }
+    }
+
+    /**
+     * Reads RFC 4180 records: fields separated by commas, records by CRLF or LF, and fields in
+     * double quotes may contain commas, line breaks and doubled quotes.
+     */
+    static final class CsvParser {
+        private final Reader mIn;
+        private final char[] mBuffer = new char[8192];
+        private int mPosition;
+        private int mLimit;
+        private final StringBuilder mField = new StringBuilder();
+
+        CsvParser(Reader in) {
+            mIn = in;
+        }
+
+        private int read() throws IOException {
+            if (mPosition == mLimit) {
+                mLimit = mIn.read(mBuffer, 0, mBuffer.length);
+                mPosition = 0;
+                if (mLimit <= 0) {
+                    mLimit = 0;
+                    return -1;
+                }
+            }
+            return mBuffer[mPosition++];
+        }
+
+        /**
+         * Returns the fields of the next record, or null at the end of the input.
+         */
+        ArrayList<String> nextRecord() throws IOException {
+            int ch = read();
+            if (ch == -1) {
+                return null;
+            }
+
+            ArrayList<String> record = new ArrayList<String>();
+            mField.setLength(0);
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (ch == -1) {
+                        throw new IOException("Unterminated quoted field");
+                    } else if (ch == '"') {
+                        ch = read();
+                        if (ch == '"') {
+                            mField.append('"');
+                        } else {
+                            quoted = false;
+                            continue;
+                        }
+                    } else {
+                        mField.append((char) ch);
+                    }
+                } else if (ch == '"' && mField.length() == 0) {
+                    quoted = true;
+                } else if (ch == ',') {
+                    record.add(mField.toString());
+                    mField.setLength(0);
+                } else if (ch == '\n' || ch == -1) {
+                    break;
+                } else if (ch != '\r') {
+                    mField.append((char) ch);
+                }
+                ch = read();
+            }
+            record.add(mField.toString());
+            return record;
+        }
+    }
+}
@@ -0,0 +1,548 @@
+package com.example.android.notepad;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+
+/**
+ * Loads the notes list off the UI thread in pages of {@link #PAGE_SIZE} rows.
+ *
+ * Pages are fetched with keyset pagination: the next page is selected by the sort key of the
+ * last loaded row, e.g. "modified <= ? AND (modified < ? OR _id < ?)", instead of an OFFSET.
+ * Each page is a seek on the index matching the sort order, so loading page n costs the same
+ * as loading the first page. The delivered cursor is a {@link MergeCursor} over all pages loaded
+ * so far; the loader owns the pages and closes them when the list is reloaded or reset.
+ *
+ * Changes are watched through the notification URIs of the provider. An update to one note that
+ * leaves its place in the list alone, or a change to a category, is applied by reading just that
+ * note or category and patching it into a {@link RowOverlayCursor} over the pages; the
+ * {@link PatchListener} then rebinds the affected rows. Every other change reloads the list.
+ */
+class NoteListLoader extends AsyncTaskLoader<Cursor> {
+
+    static final int PAGE_SIZE = 50;
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("\\W+");
+
+    // The list columns a category patch replaces, and the category columns they come from.
+    private static final String[][] CATEGORY_COLUMNS = {
+            { NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Categories.COLUMN_NAME_NAME },
+            { NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR, NotePad.Categories.COLUMN_NAME_COLOR },
+            { NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR_HEX,
+                    NotePad.Categories.COLUMN_NAME_COLOR_HEX },
+    };
+
+    interface PatchListener {
+        /**
+         * Called on the main thread after the row of a note was patched.
+         */
+        void onNotePatched(long noteId);
+
+        /**
+         * Called on the main thread after the rows in a category were patched.
+         */
+        void onCategoryPatched(long categoryId);
+    }
+
+    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (!isStarted() || !patch(uri)) {
+                onContentChanged();
+            }
+        }
+    };
+    private boolean mObserverRegistered;
+
+    private final LongSparseArray<Object[]> mPatchedNotes = new LongSparseArray<>();
+    private final LongSparseArray<Object[]> mPatchedCategories = new LongSparseArray<>();
+    private PatchListener mPatchListener;
+
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+
+    private final boolean mPaged;
+    private final String mLeadColumn;
+
+    // The columns that decide which notes are in the list or in what order.
+    private final HashSet<String> mPlacingColumns = new HashSet<>();
+
+    private final ArrayList<Cursor> mPages = new ArrayList<>();
+    private Cursor mCursor;
+    private RowOverlayCursor mOverlay;
+    private boolean mHasMore;
+
+    private volatile String mPendingSelection;
+    private volatile String[] mPendingSelectionArgs;
+    private volatile int mPendingLimit;
+    private volatile boolean mPendingAppend;
+    private boolean mLoadingPage;
+
+    // Set from the moment a reload is requested until it is delivered. A page appended in
+    // between would cancel the reload and extend the stale pages.
+    private boolean mReloading;
+
+    private CancellationSignal mCancellationSignal;
+
+    NoteListLoader(Context context, Uri uri, String[] projection, String selection,
+                   String[] selectionArgs, String sortOrder) {
+        super(context);
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+
+        // Every word of the sort order and selection is taken as a column name, which may
+        // also catch a word in a literal. That only costs a reload a patch could have avoided.
+        addWords(mPlacingColumns,
+                sortOrder != null ? sortOrder : NotePad.Notes.DEFAULT_SORT_ORDER);
+        if (selection != null) {
+            addWords(mPlacingColumns, selection);
+        }
+        // Search results are matched against the title and body.
+        if (uri.getPath().equals(NotePad.Notes.SEARCH_URI.getPath())) {
+            mPlacingColumns.add(NotePad.Notes.COLUMN_NAME_TITLE);
+            mPlacingColumns.add(NotePad.Notes.COLUMN_NAME_NOTE);
+        }
+
+        if (NotePad.Notes.DEFAULT_SORT_ORDER.equals(sortOrder)) {
+            mPaged = true;
+            mLeadColumn = null;
+        } else if (NotePad.Notes.SORT_ORDER_CATEGORY.equals(sortOrder)) {
+            mPaged = true;
+            mLeadColumn = NotePad.Notes.COLUMN_NAME_CATEGORY_ID;
+        } else if (NotePad.Notes.SORT_ORDER_TODO_STATUS.equals(sortOrder)) {
+            mPaged = true;
+            mLeadColumn = NotePad.Notes.COLUMN_NAME_TODO_STATUS;
+        } else {
+            mPaged = false;
+            mLeadColumn = null;
+        }
+    }
+
+    boolean hasMore() {
+        return mHasMore;
+    }
+
+    void setPatchListener(PatchListener listener) {
+        mPatchListener = listener;
+    }
+
+    /**
+     * Shows the given row for a note until a patch read from the provider or a reload replaces
+     * it, e.g. the expected outcome of a write that is still running.
+     */
+    void putPatch(long noteId, Object[] row) {
+        if (mOverlay == null) {
+            return;
+        }
+        mPatchedNotes.put(noteId, row);
+        if (mPatchListener != null) {
+            mPatchListener.onNotePatched(noteId);
+        }
+    }
+
+    /**
+     * Starts patching the change named by a notification URI into the list, and returns false
+     * if the change needs a reload instead.
+     */
+    private boolean patch(Uri uri) {
+        if (uri == null || mOverlay == null || mProjection == null) {
+            return false;
+        }
+        String op = uri.getQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_OP);
+
+        if (NotePad.Notes.CHANGE_UPDATE.equals(op)) {
+            String columns = uri.getQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_COLUMNS);
+            if (columns == null) {
+                return false;
+            }
+            for (String column : TextUtils.split(columns, ",")) {
+                if (placesRows(column)) {
+                    return false;
+                }
+            }
+            patchNote(ContentUris.parseId(uri));
+            return true;
+        }
+
+        if (NotePad.Notes.CHANGE_CATEGORY.equals(op)) {
+            String categoryId = uri.getQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_CATEGORY_ID);
+            if (categoryId == null) {
+                return false;
+            }
+            for (String[] columns : CATEGORY_COLUMNS) {
+                if (placesRows(columns[0])) {
+                    return false;
+                }
+            }
+            patchCategory(Long.parseLong(categoryId));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the column decides which notes are in the list or in what order.
+     */
+    private boolean placesRows(String column) {
+        return mPlacingColumns.contains(column);
+    }
+
+    private static void addWords(HashSet<String> words, String sql) {
+        for (String word : WORD_SEPARATOR.split(sql)) {
+            if (word.length() > 0) {
+                words.add(word);
+            }
+        }
+    }
+
+    private void patchNote(final long noteId) {
+        final Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+        new AsyncTask<Void, Void, Object[]>() {
+            @Override
+            protected Object[] doInBackground(Void... params) {
+                Cursor c = getContext().getContentResolver().query(noteUri, mProjection,
+                        null, null, null);
+                if (c == null) {
+                    return null;
+                }
+                try {
+                    return c.moveToFirst() ? NoteCache.readRow(c) : null;
+                } finally {
+                    c.close();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Object[] row) {
+                if (isReset()) {
+                    return;
+                }
+                if (row == null) {
+                    onContentChanged();
+                    return;
+                }
+                mPatchedNotes.put(noteId, row);
+                if (mPatchListener != null) {
+                    mPatchListener.onNotePatched(noteId);
+                }
+            }
+        }.execute();
+    }
+
+    private void patchCategory(final long categoryId) {
+        final Uri categoryUri =
+                ContentUris.withAppendedId(NotePad.Categories.CONTENT_ID_URI_BASE, categoryId);
+        new AsyncTask<Void, Void, Object[]>() {
+            @Override
+            protected Object[] doInBackground(Void... params) {
+                Object[] row = new Object[mProjection.length];
+                Arrays.fill(row, RowOverlayCursor.KEEP);
+                ArrayList<String> columns = new ArrayList<>();
+                ArrayList<Integer> positions = new ArrayList<>();
+                for (String[] column : CATEGORY_COLUMNS) {
+                    int position = Arrays.asList(mProjection).indexOf(column[0]);
+                    if (position >= 0) {
+                        columns.add(column[1]);
+                        positions.add(position);
+                    }
+                }
+                if (columns.isEmpty()) {
+                    return row;
+                }
+
+                Cursor c = getContext().getContentResolver().query(categoryUri,
+                        columns.toArray(new String[columns.size()]), null, null, null);
+                if (c == null) {
+                    return null;
+                }
+                try {
+                    if (!c.moveToFirst()) {
+                        return null;
+                    }
+                    Object[] values = NoteCache.readRow(c);
+                    for (int i = 0; i < values.length; i++) {
+                        row[positions.get(i)] = values[i];
+                    }
+                    return row;
+                } finally {
+                    c.close();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Object[] row) {
+                if (isReset()) {
+                    return;
+                }
+                if (row == null) {
+                    onContentChanged();
+                    return;
+                }
+                mPatchedCategories.put(categoryId, row);
+                if (mPatchListener != null) {
+                    mPatchListener.onCategoryPatched(categoryId);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Starts loading the page after the last loaded row. Does nothing if a load is already
+     * running, the list is being reloaded or every row has been loaded.
+     */
+    void loadNextPage() {
+        if (!mHasMore || mCursor == null || mLoadingPage || mReloading) {
+            return;
+        }
+
+        Cursor last = mPages.get(mPages.size() - 1);
+        if (!last.moveToLast()) {
+            mHasMore = false;
+            return;
+        }
+
+        String modified = last.getString(
+                last.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+        String id = last.getString(last.getColumnIndexOrThrow(NotePad.Notes._ID));
+
+        ArrayList<String> args = new ArrayList<>();
+        StringBuilder keyset = new StringBuilder();
+        String lead = mLeadColumn != null
+                ? last.getString(last.getColumnIndexOrThrow(mLeadColumn))
+                : null;
+        if (lead != null) {
+            keyset.append(mLeadColumn).append(" >= ? AND (").append(mLeadColumn)
+                    .append(" > ? OR ");
+            args.add(lead);
+            args.add(lead);
+        } else if (mLeadColumn != null) {
+            // NULLs sort first, so every non-NULL row comes after the last NULL row.
+            keyset.append('(').append(mLeadColumn).append(" IS NOT NULL OR (")
+                    .append(mLeadColumn).append(" IS NULL AND (");
+        } else {
+            keyset.append(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE).append(" <= ? AND (");
+            args.add(modified);
+        }
+        keyset.append(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE).append(" < ? OR (")
+                .append(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE).append(" = ? AND ")
+                .append(NotePad.Notes._ID).append(" < ?))");
+        if (mLeadColumn != null && lead == null) {
+            keyset.append("))");
+        }
+        args.add(modified);
+        args.add(modified);
+        args.add(id);
+
+        String selection = keyset.toString();
+        if (mSelection != null) {
+            selection = "(" + mSelection + ") AND " + selection;
+        }
+        if (mSelectionArgs != null) {
+            args.addAll(0, Arrays.asList(mSelectionArgs));
+        }
+
+        mPendingSelection = selection;
+        mPendingSelectionArgs = args.toArray(new String[args.size()]);
+        mPendingLimit = PAGE_SIZE;
+        mPendingAppend = true;
+        mLoadingPage = true;
+        forceLoad();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mCancellationSignal = new CancellationSignal();
+        }
+        try {
+            Uri uri = mUri;
+            if (mPaged) {
+                uri = mUri.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                                Integer.toString(mPendingLimit))
+                        .build();
+            }
+            Cursor cursor = getContext().getContentResolver().query(uri, mProjection,
+                    mPendingSelection, mPendingSelectionArgs, mSortOrder, mCancellationSignal);
+            if (cursor != null) {
+                try {
+                    cursor.getCount();
+                } catch (RuntimeException ex) {
+                    cursor.close();
+                    throw ex;
+                }
+            }
+            return cursor;
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(Cursor page) {
+        if (isReset()) {
+            if (page != null) {
+                page.close();
+            }
+            return;
+        }
+
+        ArrayList<Cursor> stale = null;
+        if (page != null) {
+            if (!mPendingAppend) {
+                stale = new ArrayList<>(mPages);
+                mPages.clear();
+            }
+            mPages.add(page);
+            mHasMore = mPaged && page.getCount() >= mPendingLimit;
+            mCursor = mPages.size() == 1
+                    ? page
+                    : new MergeCursor(mPages.toArray(new Cursor[mPages.size()]));
+
+            // A reload reads every row afresh, so the patches it covers are dropped.
+            if (!mPendingAppend) {
+                mPatchedNotes.clear();
+                mPatchedCategories.clear();
+            }
+            mOverlay = new RowOverlayCursor(mCursor, mPatchedNotes, mPatchedCategories);
+        }
+        mPendingAppend = false;
+        mLoadingPage = false;
+        mReloading = false;
+
+        if (isStarted()) {
+            super.deliverResult(mOverlay);
+        }
+
+        if (stale != null) {
+            for (Cursor old : stale) {
+                if (!old.isClosed()) {
+                    old.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    NotePad.Notes.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mOverlay != null) {
+            super.deliverResult(mOverlay);
+        }
+        // A reload that was cancelled when the loader stopped is started again.
+        if (takeContentChanged() || mCursor == null || mReloading) {
+            forceReload();
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        if (isStarted()) {
+            forceReload();
+        } else {
+            super.onContentChanged();
+        }
+    }
+
+    /**
+     * Reloads the list from the top, keeping as many rows as are currently loaded so that the
+     * scroll position survives the reload.
+     */
+    private void forceReload() {
+        int loaded = mCursor != null && !mCursor.isClosed() ? mCursor.getCount() : 0;
+        mPendingSelection = mSelection;
+        mPendingSelectionArgs = mSelectionArgs;
+        mPendingLimit = Math.max(PAGE_SIZE, loaded);
+        mPendingAppend = false;
+        mLoadingPage = false;
+        mReloading = true;
+        forceLoad();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor page) {
+        if (page != null && !page.isClosed()) {
+            page.close();
+        }
+        mPendingAppend = false;
+        mLoadingPage = false;
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        onStopLoading();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        closePages();
+    }
+
+    private void closePages() {
+        for (Cursor page : mPages) {
+            if (!page.isClosed()) {
+                page.close();
+            }
+        }
+        mPages.clear();
+        mCursor = null;
+        mOverlay = null;
+        mPatchedNotes.clear();
+        mPatchedCategories.clear();
+        mHasMore = false;
+        mReloading = false;
+    }
+}
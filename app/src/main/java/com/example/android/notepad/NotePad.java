@@ -25,6 +25,8 @@ public final class NotePad {
 
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        private static final String PATH_SEARCH = "/notes/search";
+
         public static final Uri CONTENT_URI =  Uri.parse(SCHEME + AUTHORITY + PATH_NOTES);
 
         public static final Uri CONTENT_ID_URI_BASE
@@ -36,11 +38,139 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
                 = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * The path segment appended to a note URI to open its full body as a UTF-8 text stream,
+         * e.g. content://.../notes/1/body. Opening it for writing replaces the body once the
+         * stream is closed. From API 19, a client that closes the stream with
+         * ParcelFileDescriptor#closeWithError, or dies, leaves the old body in place.
+         */
+        public static final String PATH_SEGMENT_BODY = "body";
+
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameters of the change notifications sent for one note, e.g.
+         * content://.../notes/1?op=update&amp;columns=todo_status. The op is one of
+         * {@link #CHANGE_INSERT}, {@link #CHANGE_UPDATE} and {@link #CHANGE_DELETE}, and an update
+         * names the columns it wrote. A change to a category that notes show is sent on
+         * {@link #CONTENT_URI} with {@link #CHANGE_CATEGORY} and the category id. A notification
+         * without an op may cover any number of notes.
+         */
+        public static final String NOTIFY_PARAMETER_OP = "op";
+
+        public static final String NOTIFY_PARAMETER_COLUMNS = "columns";
+
+        public static final String NOTIFY_PARAMETER_CATEGORY_ID = "category_id";
+
+        public static final String CHANGE_INSERT = "insert";
+
+        public static final String CHANGE_UPDATE = "update";
+
+        public static final String CHANGE_DELETE = "delete";
+
+        public static final String CHANGE_CATEGORY = "category";
+
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note";
 
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
-        public static final String DEFAULT_SORT_ORDER = "modified DESC";
+        /**
+         * The stream types the notes collection can be exported as, through
+         * ContentResolver.openTypedAssetFileDescriptor() on {@link #CONTENT_URI} or a category's
+         * notes. NDJSON writes one JSON object per note and line; CSV starts with a header row.
+         */
+        public static final String EXPORT_TYPE_NDJSON = "application/x-ndjson";
+
+        public static final String EXPORT_TYPE_CSV = "text/csv";
+
+        /**
+         * Export options, passed in the opts Bundle. Each one narrows the exported notes: a
+         * category id (long), a todo status (int), and a modification time range in
+         * milliseconds (long), where the start is inclusive and the end exclusive.
+         */
+        public static final String EXPORT_OPTION_CATEGORY_ID = "category_id";
+
+        public static final String EXPORT_OPTION_TODO_STATUS = "todo_status";
+
+        public static final String EXPORT_OPTION_MODIFIED_SINCE = "modified_since";
+
+        public static final String EXPORT_OPTION_MODIFIED_BEFORE = "modified_before";
+
+        /**
+         * The ContentResolver.call() method that imports notes in one of the export formats,
+         * passed as the arg. The stream is read from the ParcelFileDescriptor in
+         * {@link #IMPORT_EXTRA_SOURCE}. An optional ResultReceiver in
+         * {@link #IMPORT_EXTRA_PROGRESS_RECEIVER} gets the running count after every batch, and
+         * the result holds the final count, both under {@link #IMPORT_RESULT_COUNT}.
+         */
+        public static final String METHOD_IMPORT = "import";
+
+        public static final String IMPORT_EXTRA_SOURCE = "source";
+
+        public static final String IMPORT_EXTRA_PROGRESS_RECEIVER = "progress_receiver";
+
+        public static final String IMPORT_RESULT_COUNT = "count";
+
+        /**
+         * The ContentResolver.call() method that reports how the provider's cache of single notes
+         * is doing: the hit and miss counts of note id queries, and the estimated bytes cached.
+         */
+        public static final String METHOD_CACHE_STATS = "cache_stats";
+
+        public static final String CACHE_STATS_HITS = "hits";
+
+        public static final String CACHE_STATS_MISSES = "misses";
+
+        public static final String CACHE_STATS_SIZE = "size";
+
+        /**
+         * The ContentResolver.call() method that reports what the provider has done since it
+         * started. The result holds a Bundle per operation ({@link #METRICS_QUERY} and so on),
+         * which holds a Bundle of counters per URI type that was called, such as "notes" or
+         * "note". Latencies are in microseconds; bucket i of {@link #METRICS_HISTOGRAM} counts
+         * calls faster than bound i of {@link #METRICS_HISTOGRAM_BOUNDS}, and the last bucket
+         * counts the rest.
+         */
+        public static final String METHOD_METRICS = "metrics";
+
+        public static final String METRICS_QUERY = "query";
+
+        public static final String METRICS_INSERT = "insert";
+
+        public static final String METRICS_UPDATE = "update";
+
+        public static final String METRICS_DELETE = "delete";
+
+        /** Streams opened on notes and bodies, and exports. */
+        public static final String METRICS_STREAM = "stream";
+
+        /** Change notifications sent, by the type of the URI notified. */
+        public static final String METRICS_NOTIFY = "notify";
+
+        public static final String METRICS_CALLS = "calls";
+
+        /** Notes written, deleted or streamed. Queries are timed but count no rows. */
+        public static final String METRICS_ROWS = "rows";
+
+        public static final String METRICS_BYTES = "bytes";
+
+        public static final String METRICS_TOTAL_MICROS = "total_us";
+
+        public static final String METRICS_HISTOGRAM = "histogram";
+
+        public static final String METRICS_HISTOGRAM_BOUNDS = "histogram_bounds_us";
+
+        public static final String DEFAULT_SORT_ORDER = "modified DESC, _id DESC";
+
+        public static final String SORT_ORDER_CATEGORY =
+                "category_id ASC, modified DESC, _id DESC";
+
+        public static final String SORT_ORDER_TODO_STATUS =
+                "todo_status ASC, modified DESC, _id DESC";
 
         public static final String[] PROJECTION = new String[] {
                 NotePad.Notes._ID, // 0
@@ -57,6 +187,14 @@ public final class NotePad {
 
         public static final String COLUMN_NAME_NOTE = "note";
 
+        /**
+         * The first {@link #PREVIEW_LENGTH} characters of the body, for lists that show only the
+         * start of each note. Read-only.
+         */
+        public static final String COLUMN_NAME_PREVIEW = "preview";
+
+        public static final int PREVIEW_LENGTH = 200;
+
         public static final String COLUMN_NAME_CREATE_DATE = "created";
 
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
@@ -69,7 +207,37 @@ public final class NotePad {
 
         public static final String COLUMN_NAME_CATEGORY = "category";
 
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
         public static final String COLUMN_NAME_CATEGORY_COLOR = "category_color";
+
+        public static final String COLUMN_NAME_CATEGORY_COLOR_HEX = "category_color_hex";
+
+        /**
+         * The number of chunks a long body continues in after the first
+         * {@link #BODY_CHUNK_SIZE} characters, which are kept in {@link #COLUMN_NAME_NOTE}.
+         * Zero if the note column holds the whole body.
+         */
+        public static final String COLUMN_NAME_CHUNK_COUNT = "chunk_count";
+
+        public static final int BODY_CHUNK_SIZE = 64 * 1024;
+
+        /**
+         * When the note was deleted, or null for a note that was not. Deleted notes are hidden
+         * from every URI until they are purged in the background. Not readable through the
+         * provider.
+         */
+        public static final String COLUMN_NAME_DELETED_AT = "deleted_at";
+
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        public static final String COLUMN_NAME_SEARCH_RANK = "rank";
+
+        public static final String SEARCH_SORT_ORDER = "rank DESC";
+
+        public static final String FTS_TABLE_NAME = "notes_fts";
+
+        public static final String CHUNKS_TABLE_NAME = "note_chunks";
     }
 
     public static final class Categories implements BaseColumns {
@@ -102,5 +270,9 @@ public final class NotePad {
         public static final String COLUMN_NAME_NAME = "name";
 
         public static final String COLUMN_NAME_COLOR = "color";
+
+        public static final String COLUMN_NAME_COLOR_HEX = "color_hex";
+
+        public static final int DEFAULT_COLOR = 0xFF9E9E9E;
     }
 }
\ No newline at end of file
@@ -4,9 +4,12 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
@@ -16,39 +19,121 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Color;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class NotePadProvider extends ContentProvider implements PipeDataWriter<Cursor> {
     private static final String TAG = "NotePadProvider";
 
     private static final String DATABASE_NAME = "note_pad.db";
 
-    private static final int DATABASE_VERSION = 4;
+    private static final String DEFAULT_CATEGORY = "其他";
+
+    private static final String PERMISSION_READ_NOTES =
+            "com.example.android.notepad.permission.READ_NOTES";
+
+    private static final String PERMISSION_WRITE_NOTES =
+            "com.example.android.notepad.permission.WRITE_NOTES";
+
+    /**
+     * The number of rows bulkInsert writes between yield points. Yielding commits the rows so
+     * far and lets waiting readers and writers in before the batch continues.
+     */
+    static final int BULK_INSERT_YIELD_INTERVAL = 500;
+
+    private static final int EXPORT_BUFFER_SIZE = 8192;
+
+    /**
+     * The estimated bytes of note rows kept by the cache of single-note queries.
+     */
+    private static final int NOTE_CACHE_SIZE = 1024 * 1024;
+
+    /**
+     * The number of built query statements kept, one per URI type, projection, selection,
+     * sort order and use of a limit.
+     */
+    private static final int QUERY_PLAN_CACHE_SIZE = 64;
+
+    static final int DATABASE_VERSION = 11;
+
+    private static final int SUBSTRING_SNIPPET_LENGTH = 64;
+
+    private static final Set<Character.UnicodeBlock> CJK_BLOCKS =
+            new HashSet<Character.UnicodeBlock>(Arrays.asList(
+                    Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS,
+                    Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A,
+                    Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B,
+                    Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS,
+                    Character.UnicodeBlock.HIRAGANA,
+                    Character.UnicodeBlock.KATAKANA,
+                    Character.UnicodeBlock.HANGUL_SYLLABLES));
 
     private static HashMap<String, String> sNotesProjectionMap;
 
+    private static HashMap<String, String> sSearchProjectionMap;
+
+    private static HashMap<String, String> sSubstringSearchProjectionMap;
+
+    private static HashMap<String, String> sCategoriesProjectionMap;
+
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
     private static final String[] READ_NOTE_PROJECTION = new String[] {
             NotePad.Notes._ID,
-            NotePad.Notes.COLUMN_NAME_NOTE,
             NotePad.Notes.COLUMN_NAME_TITLE,
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
+    private static final int READ_NOTE_ID_INDEX = 0;
+    private static final int READ_NOTE_TITLE_INDEX = 1;
+
+    /**
+     * Selects the notes that are not deleted. Deleted notes stay in the table, hidden, until
+     * {@link NotePurger} removes them. The unary plus keeps the planner from reading lists
+     * through notes_deleted_index, so that they are still read in order from the list indexes.
+     */
+    static final String NOT_DELETED = "+" + NotePad.Notes.TABLE_NAME + "."
+            + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL";
+
+    /**
+     * Reads a note body in order: the head kept in the notes row, then its chunks.
+     */
+    private static final String READ_BODY_SQL = "SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+            + ", -1 AS seq FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID
+            + " = ? UNION ALL SELECT text, seq FROM " + NotePad.Notes.CHUNKS_TABLE_NAME
+            + " WHERE note_id = ? ORDER BY seq";
 
     private static final int NOTES = 1;
 
@@ -62,10 +147,58 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
     private static final int NOTES_BY_CATEGORY = 6;
 
+    private static final int NOTES_SEARCH = 7;
+
+    private static final int NOTE_BODY = 8;
+
+    // Not matched from a URI: a search run as substring matches, see runQuery().
+    private static final int NOTES_SUBSTRING_SEARCH = 9;
+
+    // The names metrics report URI types under, indexed by match code.
+    private static final String[] URI_TYPES = {
+        "unknown", "notes", "note", "live_folder", "categories", "category",
+        "notes_by_category", "search", "note_body"
+    };
+
     private static final UriMatcher sUriMatcher;
 
+    private static String sUntitled;
+
     private DatabaseHelper mOpenHelper;
 
+    private final HashMap<String, Long> mCategoryIds = new HashMap<String, Long>();
+
+    private boolean mCategoryIdsLoaded;
+
+    private NoteCache mNoteCache;
+
+    private NotePurger mPurger;
+
+    private final ProviderMetrics mMetrics = new ProviderMetrics(URI_TYPES);
+
+    private final LruCache<QueryPlanKey, String> mQueryPlans =
+            new LruCache<QueryPlanKey, String>(QUERY_PLAN_CACHE_SIZE);
+
+    private final NoteCache.Loader mNoteLoader = new NoteCache.Loader() {
+        @Override
+        public Object[] load(long noteId) {
+            return loadNote(noteId);
+        }
+    };
+
+    /**
+     * The threads storing bodies written through {@link NotePad.Notes#PATH_SEGMENT_BODY}, by
+     * note id. Reads of a note wait for its body to be stored.
+     */
+    private final HashMap<Long, Thread> mBodyWriters = new HashMap<Long, Thread>();
+
+    /**
+     * The change notifications held back by the batch running on the current thread, or null
+     * if the thread is not running a batch.
+     */
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchNotifications =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -81,6 +214,11 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/category/#", NOTES_BY_CATEGORY);
 
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTES_SEARCH);
+
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.PATH_SEGMENT_BODY,
+                NOTE_BODY);
+
         sNotesProjectionMap = new HashMap<String, String>();
 
         sNotesProjectionMap.put(NotePad.Notes._ID, NotePad.Notes._ID);
@@ -101,12 +239,89 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 NotePad.Notes.COLUMN_NAME_TODO_STATUS);
 
         sNotesProjectionMap.put(
-                NotePad.Notes.COLUMN_NAME_CATEGORY,
-                NotePad.Notes.COLUMN_NAME_CATEGORY);
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
 
-        sNotesProjectionMap.put(
-                NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
-                NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR);
+        sSearchProjectionMap = new HashMap<String, String>();
+
+        for (String column : sNotesProjectionMap.keySet()) {
+            sSearchProjectionMap.put(column,
+                    NotePad.Notes.TABLE_NAME + "." + column + " AS " + column);
+        }
+
+        // The category name and color are looked up by primary key, so a rename or recolor
+        // touches only the categories row.
+        String categoryName = categoryColumn(NotePad.Categories.COLUMN_NAME_NAME);
+        String categoryColor = categoryColumn(NotePad.Categories.COLUMN_NAME_COLOR);
+
+        for (HashMap<String, String> map : Arrays.asList(
+                sNotesProjectionMap, sSearchProjectionMap)) {
+            map.put(
+                    NotePad.Notes.COLUMN_NAME_CATEGORY,
+                    categoryName + " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY);
+
+            map.put(
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+                    categoryColor + " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR);
+
+            map.put(
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR_HEX,
+                    hexColor(categoryColor) + " AS "
+                            + NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR_HEX);
+
+            map.put(
+                    NotePad.Notes.COLUMN_NAME_PREVIEW,
+                    "substr(" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE
+                            + ", 1, " + NotePad.Notes.PREVIEW_LENGTH + ") AS "
+                            + NotePad.Notes.COLUMN_NAME_PREVIEW);
+
+            map.put(
+                    NotePad.Notes.COLUMN_NAME_CHUNK_COUNT,
+                    "(SELECT count(*) FROM " + NotePad.Notes.CHUNKS_TABLE_NAME + " WHERE "
+                            + NotePad.Notes.CHUNKS_TABLE_NAME + ".note_id = "
+                            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ") AS "
+                            + NotePad.Notes.COLUMN_NAME_CHUNK_COUNT);
+        }
+
+        // A substring match has no offsets to center a snippet on or rank by.
+        sSubstringSearchProjectionMap = new HashMap<String, String>(sSearchProjectionMap);
+
+        sSubstringSearchProjectionMap.put(
+                NotePad.Notes.COLUMN_NAME_SNIPPET,
+                "substr(" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ", 1, " + SUBSTRING_SNIPPET_LENGTH + ") AS "
+                        + NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+        sSubstringSearchProjectionMap.put(
+                NotePad.Notes.COLUMN_NAME_SEARCH_RANK,
+                "0 AS " + NotePad.Notes.COLUMN_NAME_SEARCH_RANK);
+
+        sSearchProjectionMap.put(
+                NotePad.Notes.COLUMN_NAME_SNIPPET,
+                "snippet(" + NotePad.Notes.FTS_TABLE_NAME + ", '[', ']', '...', -1, 16) AS "
+                        + NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+        sSearchProjectionMap.put(
+                NotePad.Notes.COLUMN_NAME_SEARCH_RANK,
+                "length(offsets(" + NotePad.Notes.FTS_TABLE_NAME + ")) AS "
+                        + NotePad.Notes.COLUMN_NAME_SEARCH_RANK);
+
+        sCategoriesProjectionMap = new HashMap<String, String>();
+
+        sCategoriesProjectionMap.put(NotePad.Categories._ID, NotePad.Categories._ID);
+
+        sCategoriesProjectionMap.put(
+                NotePad.Categories.COLUMN_NAME_NAME,
+                NotePad.Categories.COLUMN_NAME_NAME);
+
+        sCategoriesProjectionMap.put(
+                NotePad.Categories.COLUMN_NAME_COLOR,
+                NotePad.Categories.COLUMN_NAME_COLOR);
+
+        sCategoriesProjectionMap.put(
+                NotePad.Categories.COLUMN_NAME_COLOR_HEX,
+                hexColor(NotePad.Categories.COLUMN_NAME_COLOR) + " AS "
+                        + NotePad.Categories.COLUMN_NAME_COLOR_HEX);
 
         sLiveFolderProjectionMap = new HashMap<String, String>();
 
@@ -118,8 +333,72 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
     static class DatabaseHelper extends SQLiteOpenHelper {
 
+        private static final String JOURNAL_MODE_WAL = "WAL";
+
+        private DatabaseMigrations.ProgressListener mMigrationListener;
+
+        private final String mJournalMode;
+        private final String mSynchronous;
+        private final int mCacheSizeKib;
+
         DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            this(context, DATABASE_NAME);
+        }
+
+        DatabaseHelper(Context context, String name) {
+            this(context, name,
+                    context.getString(R.string.config_database_journal_mode),
+                    context.getString(R.string.config_database_synchronous),
+                    context.getResources().getInteger(R.integer.config_database_cache_size_kib));
+        }
+
+        DatabaseHelper(Context context, String name, String journalMode, String synchronous,
+                       int cacheSizeKib) {
+            super(context, name, null, DATABASE_VERSION);
+            mJournalMode = checkSetting(journalMode, "WAL", "TRUNCATE", "DELETE", "PERSIST");
+            mSynchronous = checkSetting(synchronous, "OFF", "NORMAL", "FULL");
+            mCacheSizeKib = cacheSizeKib;
+
+            // Lets readers use their own pooled connections while a writer is active.
+            setWriteAheadLoggingEnabled(JOURNAL_MODE_WAL.equals(mJournalMode));
+        }
+
+        private static String checkSetting(String value, String... allowed) {
+            for (String setting : allowed) {
+                if (setting.equalsIgnoreCase(value)) {
+                    return setting;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported database setting " + value);
+        }
+
+        /**
+         * Applies the configured journal mode, synchronous level and cache size. The platform
+         * only passes the primary connection here, so the cache size of pooled read-only
+         * connections stays at the SQLite default.
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            if (!JOURNAL_MODE_WAL.equals(mJournalMode)) {
+                Cursor c = db.rawQuery("PRAGMA journal_mode = " + mJournalMode, null);
+                try {
+                    c.moveToFirst();
+                } finally {
+                    c.close();
+                }
+            }
+            db.execSQL("PRAGMA synchronous = " + mSynchronous);
+            // Queries bind their ids, so a few dozen statements cover every query the
+            // provider runs; keeping them all prepared saves preparing them again.
+            db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+            if (mCacheSizeKib > 0) {
+                // A negative cache size is in KiB rather than pages.
+                db.execSQL("PRAGMA cache_size = -" + mCacheSizeKib);
+            }
+        }
+
+        void setMigrationListener(DatabaseMigrations.ProgressListener listener) {
+            mMigrationListener = listener;
         }
 
         @Override
@@ -131,42 +410,184 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                     + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
                     + NotePad.Notes.COLUMN_NAME_TODO_STATUS + " INTEGER DEFAULT 0,"
-                    + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT DEFAULT '其他',"
-                    + NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR + " TEXT DEFAULT '#9E9E9E'"
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER REFERENCES "
+                    + NotePad.Categories.TABLE_NAME + "(" + NotePad.Categories._ID + "),"
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + " INTEGER"
                     + ");");
 
+            createFullTextIndex(db);
+
+            createNoteIndexes(db);
+
+            createDeletedIndex(db);
+
+            createChunkTable(db);
+
             db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
                     + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
                     + NotePad.Categories.COLUMN_NAME_NAME + " TEXT UNIQUE,"
-                    + NotePad.Categories.COLUMN_NAME_COLOR + " TEXT"
+                    + NotePad.Categories.COLUMN_NAME_COLOR + " INTEGER"
                     + ");");
 
             ContentValues values = new ContentValues();
             values.put(NotePad.Categories.COLUMN_NAME_NAME, "工作");
-            values.put(NotePad.Categories.COLUMN_NAME_COLOR, "#FF5722");
+            values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFFFF5722);
             db.insert(NotePad.Categories.TABLE_NAME, null, values);
 
             values.clear();
             values.put(NotePad.Categories.COLUMN_NAME_NAME, "学习");
-            values.put(NotePad.Categories.COLUMN_NAME_COLOR, "#4CAF50");
+            values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFF4CAF50);
             db.insert(NotePad.Categories.TABLE_NAME, null, values);
 
             values.clear();
             values.put(NotePad.Categories.COLUMN_NAME_NAME, "生活");
-            values.put(NotePad.Categories.COLUMN_NAME_COLOR, "#2196F3");
+            values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFF2196F3);
             db.insert(NotePad.Categories.TABLE_NAME, null, values);
 
             values.clear();
-            values.put(NotePad.Categories.COLUMN_NAME_NAME, "其他");
-            values.put(NotePad.Categories.COLUMN_NAME_COLOR, "#9E9E9E");
+            values.put(NotePad.Categories.COLUMN_NAME_NAME, DEFAULT_CATEGORY);
+            values.put(NotePad.Categories.COLUMN_NAME_COLOR, NotePad.Categories.DEFAULT_COLOR);
             db.insert(NotePad.Categories.TABLE_NAME, null, values);
         }
 
+        /**
+         * Creates the FTS4 index over note titles and full bodies. The index keeps its own copy
+         * of the text, since the notes table holds only the first chunk of a long body; the
+         * triggers keep it in sync and only fire when the title or body actually changes.
+         */
+        static void createFullTextIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + NotePad.Notes.FTS_TABLE_NAME + " USING fts4("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ");");
+
+            createFullTextTriggers(db);
+        }
+
+        /**
+         * Adds every note to an empty full-text index.
+         */
+        static void fillFullTextIndex(SQLiteDatabase db) {
+            db.execSQL("INSERT INTO " + NotePad.Notes.FTS_TABLE_NAME + "(docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", " + fullBody(NotePad.Notes.TABLE_NAME) + " FROM "
+                    + NotePad.Notes.TABLE_NAME + ";");
+        }
+
+        /**
+         * Returns the SQL expression for the full body of a notes row, e.g. "new": its head
+         * followed by its chunks. The chunks are read through their primary key, in seq order.
+         */
+        static String fullBody(String row) {
+            return row + "." + NotePad.Notes.COLUMN_NAME_NOTE + " || coalesce((SELECT "
+                    + "group_concat(text, '') FROM " + NotePad.Notes.CHUNKS_TABLE_NAME
+                    + " WHERE note_id = " + row + "." + NotePad.Notes._ID + "), '')";
+        }
+
+        /**
+         * Creates the triggers that keep the full-text index in step with the notes table. They
+         * have to be created again whenever the notes table is rebuilt.
+         */
+        static void createFullTextTriggers(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER notes_fts_before_update BEFORE UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " ON " + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "DELETE FROM " + NotePad.Notes.FTS_TABLE_NAME + " WHERE docid = old._id; "
+                    + "END;");
+
+            db.execSQL("CREATE TRIGGER notes_fts_before_delete BEFORE DELETE ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "DELETE FROM " + NotePad.Notes.FTS_TABLE_NAME + " WHERE docid = old._id; "
+                    + "END;");
+
+            db.execSQL("CREATE TRIGGER notes_fts_after_update AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " ON " + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "INSERT INTO " + NotePad.Notes.FTS_TABLE_NAME + "(docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") VALUES (new._id, new." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", " + fullBody("new") + "); "
+                    + "END;");
+
+            db.execSQL("CREATE TRIGGER notes_fts_after_insert AFTER INSERT ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "INSERT INTO " + NotePad.Notes.FTS_TABLE_NAME + "(docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") VALUES (new._id, new." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", " + fullBody("new") + "); "
+                    + "END;");
+        }
+
+        /**
+         * Creates one index per list ordering. Each index ends in (modified DESC, _id DESC), so
+         * it both serves a category or todo filter and returns rows already in list order.
+         */
+        static void createNoteIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_modified_index ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                    + NotePad.Notes._ID + " DESC);");
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_category_index ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                    + NotePad.Notes._ID + " DESC);");
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_todo_status_index ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_TODO_STATUS + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                    + NotePad.Notes._ID + " DESC);");
+        }
+
+        /**
+         * Creates the index the purge finds deleted notes through. Deleting a note moves only
+         * its entry in this index; the list indexes and the full-text index are left alone
+         * until the note is purged.
+         */
+        static void createDeletedIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_deleted_index ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + ");");
+        }
+
+        /**
+         * Creates the table that holds the rest of a body longer than
+         * {@link NotePad.Notes#BODY_CHUNK_SIZE}, one chunk per row, and the trigger that deletes
+         * the chunks together with their note.
+         */
+        static void createChunkTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + NotePad.Notes.CHUNKS_TABLE_NAME + " ("
+                    + "note_id INTEGER NOT NULL REFERENCES " + NotePad.Notes.TABLE_NAME + "("
+                    + NotePad.Notes._ID + "),"
+                    + "seq INTEGER NOT NULL,"
+                    + "text TEXT NOT NULL,"
+                    + "PRIMARY KEY (note_id, seq)"
+                    + ");");
+
+            db.execSQL("CREATE TRIGGER note_chunks_after_delete AFTER DELETE ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "DELETE FROM " + NotePad.Notes.CHUNKS_TABLE_NAME
+                    + " WHERE note_id = old._id; "
+                    + "END;");
+        }
+
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (DatabaseMigrations.canMigrate(oldVersion, newVersion)) {
+                Log.i(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion);
+                DatabaseMigrations.migrate(db, oldVersion, newVersion, mMigrationListener);
+                return;
+            }
+
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
 
+            db.execSQL("DROP TABLE IF EXISTS " + NotePad.Notes.FTS_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + NotePad.Notes.CHUNKS_TABLE_NAME);
             db.execSQL("DROP TABLE IF EXISTS notes");
             db.execSQL("DROP TABLE IF EXISTS " + NotePad.Categories.TABLE_NAME);
 
@@ -177,84 +598,473 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public boolean onCreate() {
         mOpenHelper = new DatabaseHelper(getContext());
+        mNoteCache = new NoteCache(
+                sNotesProjectionMap.keySet().toArray(new String[sNotesProjectionMap.size()]),
+                NOTE_CACHE_SIZE);
+        mPurger = new NotePurger(mOpenHelper);
+
+        // Purges the notes deleted before the process last ended, once the app is idle.
+        mPurger.schedule();
         return true;
     }
 
+    @Override
+    public void shutdown() {
+        mPurger.quit();
+        super.shutdown();
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Runs a query and records its latency in the metrics.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        Cursor c = null;
+        try {
+            c = queryRows(uri, match, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+            return c;
+        } finally {
+            mMetrics.record(ProviderMetrics.QUERY, match, start, 0, 0);
+        }
+    }
+
+    private Cursor queryRows(Uri uri, int match, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder,
+                             CancellationSignal cancellationSignal) {
+        if (match == NOTE_ID) {
+            long noteId = ContentUris.parseId(uri);
+            awaitBodyWrite(noteId);
+            if (selection == null && parseLimit(uri) == null) {
+                Cursor c = mNoteCache.query(noteId, projection, mNoteLoader);
+                if (c != null) {
+                    c.setNotificationUri(getContext().getContentResolver(), uri);
+                    return c;
+                }
+            }
+        }
+        Cursor c = runQuery(uri, match, projection, selection, selectionArgs, sortOrder,
+                cancellationSignal);
+
+        if (match == NOTES_SEARCH) {
+            c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        } else {
+            c.setNotificationUri(getContext().getContentResolver(), uri);
+        }
+        return c;
+    }
+
+    /**
+     * Reads every cached column of a note, or returns null if there is no such note.
+     */
+    private Object[] loadNote(long noteId) {
+        Uri uri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+        Cursor c = runQuery(uri, NOTE_ID, mNoteCache.getColumns(), null, null, null, null);
+        try {
+            return c.moveToFirst() ? NoteCache.readRow(c) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Evicts the cached notes that match a selection on the notes table. Only the cached ids
+     * are checked, so this costs nothing while the cache is empty.
+     */
+    private void evictCachedNotes(SQLiteDatabase db, String where, String[] whereArgs) {
+        Long[] cachedIds = mNoteCache.cachedIds();
+        if (cachedIds.length == 0) {
+            return;
+        }
+        if (where == null) {
+            mNoteCache.evictAll();
+            return;
+        }
+        StringBuilder sql = new StringBuilder("SELECT ").append(NotePad.Notes._ID)
+                .append(" FROM ").append(NotePad.Notes.TABLE_NAME)
+                .append(" WHERE ").append(NotePad.Notes._ID).append(" IN (");
+        for (int i = 0; i < cachedIds.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append(cachedIds[i]);
+        }
+        sql.append(") AND (").append(where).append(')');
+        Cursor c = db.rawQuery(sql.toString(), whereArgs);
+        try {
+            while (c.moveToNext()) {
+                mNoteCache.evict(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    String buildQuerySql(Uri uri, String[] projection, String selection, String sortOrder) {
+        return getQuerySql(sUriMatcher.match(uri), projection, selection, sortOrder, false);
+    }
+
+    /**
+     * Runs a query through the cached statement for its URI type, projection, selection and
+     * sort order. The values the URI contributes are bound ahead of the selection arguments,
+     * and the limit after them.
+     */
+    private Cursor runQuery(Uri uri, int match, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder,
+                            CancellationSignal cancellationSignal) {
+        // The FTS tokenizer takes a run of CJK text without spaces for one word, so a word in
+        // the middle of a sentence is no prefix of any token. Such searches match substrings
+        // of the indexed text instead, which reads every note but finds the word anywhere.
+        if (match == NOTES_SEARCH) {
+            String query = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH);
+            if (query != null && containsCjk(query)) {
+                String[] patterns = buildLikePatterns(query);
+                StringBuilder where = new StringBuilder();
+                String[] args = new String[patterns.length * 2
+                        + (selectionArgs != null ? selectionArgs.length : 0)];
+                for (int i = 0; i < patterns.length; i++) {
+                    if (i > 0) {
+                        where.append(" AND ");
+                    }
+                    where.append('(').append(NotePad.Notes.FTS_TABLE_NAME).append('.')
+                            .append(NotePad.Notes.COLUMN_NAME_TITLE)
+                            .append(" LIKE ? ESCAPE '\\' OR ")
+                            .append(NotePad.Notes.FTS_TABLE_NAME).append('.')
+                            .append(NotePad.Notes.COLUMN_NAME_NOTE)
+                            .append(" LIKE ? ESCAPE '\\')");
+                    args[2 * i] = patterns[i];
+                    args[2 * i + 1] = patterns[i];
+                }
+                if (selectionArgs != null) {
+                    System.arraycopy(selectionArgs, 0, args, patterns.length * 2,
+                            selectionArgs.length);
+                }
+                if (selection != null) {
+                    where.append(" AND (").append(selection).append(')');
+                }
+                match = NOTES_SUBSTRING_SEARCH;
+                selection = where.toString();
+                selectionArgs = args;
+            }
+        }
+
+        String limit = parseLimit(uri);
+        String[] uriArgs = getUriArgs(uri, match);
+        String sql = getQuerySql(match, projection, selection, sortOrder, limit != null);
+
+        int selectionCount = selectionArgs != null ? selectionArgs.length : 0;
+        String[] args = new String[uriArgs.length + selectionCount + (limit != null ? 1 : 0)];
+        System.arraycopy(uriArgs, 0, args, 0, uriArgs.length);
+        if (selectionCount > 0) {
+            System.arraycopy(selectionArgs, 0, args, uriArgs.length, selectionCount);
+        }
+        if (limit != null) {
+            args[args.length - 1] = limit;
+        }
+
+        return mOpenHelper.getReadableDatabase().rawQuery(sql, args, cancellationSignal);
+    }
+
+    /**
+     * Returns the SQL of a query, building it on the first use of its URI type, projection,
+     * selection and sort order. Since ids and search terms are bound, the SQL is the same for
+     * every note, and SQLite's per-connection statement cache skips preparing it again.
+     */
+    private String getQuerySql(int match, String[] projection, String selection,
+                               String sortOrder, boolean limited) {
+        String orderBy = resolveSortOrder(match, sortOrder);
+        QueryPlanKey key = new QueryPlanKey(match, projection, selection, orderBy, limited);
+        String sql = mQueryPlans.get(key);
+        if (sql == null) {
+            sql = newQueryBuilder(match).buildQuery(
+                    projection, selection, null, null, orderBy, null);
+            if (limited) {
+                // SQLiteQueryBuilder only accepts a literal limit.
+                sql += " LIMIT ?";
+            }
+            mQueryPlans.put(key.copy(), sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Returns the values a URI binds to the placeholders of its query's WHERE clause.
+     */
+    private static String[] getUriArgs(Uri uri, int match) {
+        switch (match) {
+            case NOTE_ID:
+                return new String[] {
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION) };
+
+            case CATEGORY_ID:
+                return new String[] { uri.getPathSegments().get(1) };
+
+            case NOTES_BY_CATEGORY:
+                return new String[] { Long.toString(ContentUris.parseId(uri)) };
+
+            case NOTES_SEARCH:
+                String matchExpression = buildMatchExpression(
+                        uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH));
+                if (matchExpression == null) {
+                    throw new IllegalArgumentException("Missing search term in " + uri);
+                }
+                return new String[] { matchExpression };
+
+            case NOTES:
+            case LIVE_FOLDER_NOTES:
+            case CATEGORIES:
+            case NOTES_SUBSTRING_SEARCH:
+                return new String[0];
+
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    /**
+     * Identifies a built query statement.
+     */
+    private static final class QueryPlanKey {
+        private final int mMatch;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String mOrderBy;
+        private final boolean mLimited;
+
+        QueryPlanKey(int match, String[] projection, String selection, String orderBy,
+                     boolean limited) {
+            mMatch = match;
+            mProjection = projection;
+            mSelection = selection;
+            mOrderBy = orderBy;
+            mLimited = limited;
+        }
+
+        /**
+         * Returns a key that owns its projection, so that callers reusing their array cannot
+         * change a cached key.
+         */
+        QueryPlanKey copy() {
+            return new QueryPlanKey(mMatch, mProjection != null ? mProjection.clone() : null,
+                    mSelection, mOrderBy, mLimited);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueryPlanKey)) {
+                return false;
+            }
+            QueryPlanKey other = (QueryPlanKey) o;
+            return mMatch == other.mMatch
+                    && mLimited == other.mLimited
+                    && TextUtils.equals(mSelection, other.mSelection)
+                    && TextUtils.equals(mOrderBy, other.mOrderBy)
+                    && Arrays.equals(mProjection, other.mProjection);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = mMatch;
+            hash = 31 * hash + Arrays.hashCode(mProjection);
+            hash = 31 * hash + (mSelection != null ? mSelection.hashCode() : 0);
+            hash = 31 * hash + (mOrderBy != null ? mOrderBy.hashCode() : 0);
+            return 31 * hash + (mLimited ? 1 : 0);
+        }
+    }
+
+    /**
+     * Returns a query builder for a URI type, with a placeholder for every value taken from
+     * the URI, in the order of {@link #getUriArgs}.
+     */
+    private static SQLiteQueryBuilder newQueryBuilder(int match) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             case NOTES:
                 qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(NOT_DELETED);
                 break;
 
             case NOTE_ID:
                 qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sNotesProjectionMap);
-                qb.appendWhere(
-                        NotePad.Notes._ID +
-                                "=" +
-                                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                qb.appendWhere(NotePad.Notes._ID + " = ? AND " + NOT_DELETED);
                 break;
 
             case LIVE_FOLDER_NOTES:
                 qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sLiveFolderProjectionMap);
+                qb.appendWhere(NOT_DELETED);
                 break;
 
             case CATEGORIES:
                 qb.setTables(NotePad.Categories.TABLE_NAME);
+                qb.setProjectionMap(sCategoriesProjectionMap);
                 break;
 
             case CATEGORY_ID:
                 qb.setTables(NotePad.Categories.TABLE_NAME);
-                qb.appendWhere(
-                        NotePad.Categories._ID +
-                                "=" +
-                                uri.getPathSegments().get(1));
+                qb.setProjectionMap(sCategoriesProjectionMap);
+                qb.appendWhere(NotePad.Categories._ID + " = ?");
                 break;
 
             case NOTES_BY_CATEGORY:
-                qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN " + NotePad.Categories.TABLE_NAME + " ON " + NotePad.Notes.COLUMN_NAME_CATEGORY + " = " + NotePad.Categories.COLUMN_NAME_NAME);
+                qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sNotesProjectionMap);
-                qb.appendWhere(
-                        NotePad.Categories._ID +
-                                "=" +
-                                uri.getPathSegments().get(2));
+                qb.appendWhere(NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ? AND " + NOT_DELETED);
+                break;
+
+            case NOTES_SEARCH:
+                qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN " + NotePad.Notes.FTS_TABLE_NAME
+                        + " ON " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+                        + " = " + NotePad.Notes.FTS_TABLE_NAME + ".docid");
+                qb.setProjectionMap(sSearchProjectionMap);
+                qb.appendWhere(NotePad.Notes.FTS_TABLE_NAME + " MATCH ? AND " + NOT_DELETED);
+                break;
+
+            case NOTES_SUBSTRING_SEARCH:
+                qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN " + NotePad.Notes.FTS_TABLE_NAME
+                        + " ON " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+                        + " = " + NotePad.Notes.FTS_TABLE_NAME + ".docid");
+                qb.setProjectionMap(sSubstringSearchProjectionMap);
+                qb.appendWhere(NOT_DELETED);
                 break;
 
             default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+                throw new IllegalArgumentException("Unknown URI type " + match);
         }
+        return qb;
+    }
 
-        String orderBy;
-        if (TextUtils.isEmpty(sortOrder)) {
-            if (sUriMatcher.match(uri) == CATEGORIES || sUriMatcher.match(uri) == CATEGORY_ID) {
-                orderBy = NotePad.Categories.DEFAULT_SORT_ORDER;
-            } else {
-                orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+    private static String parseLimit(Uri uri) {
+        String limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        try {
+            return Integer.toString(Integer.parseInt(limit));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit in " + uri);
+        }
+    }
+
+    private static String resolveSortOrder(int match, String sortOrder) {
+        if (!TextUtils.isEmpty(sortOrder)) {
+            return sortOrder;
+        }
+        switch (match) {
+            case CATEGORIES:
+            case CATEGORY_ID:
+                return NotePad.Categories.DEFAULT_SORT_ORDER;
+            case NOTES_SEARCH:
+                return NotePad.Notes.SEARCH_SORT_ORDER;
+            default:
+                return NotePad.Notes.DEFAULT_SORT_ORDER;
+        }
+    }
+
+    /**
+     * Turns free text typed by the user into an FTS MATCH expression. Every word becomes a
+     * quoted prefix term, so operators and quotes in the input are never interpreted by FTS.
+     * Returns null if the input contains no words.
+     */
+    static String buildMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            String term = word.replace("\"", "").replace("*", "");
+            if (term.isEmpty()) {
+                continue;
             }
-        } else {
-            orderBy = sortOrder;
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(term).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Returns true if the text contains Chinese, Japanese or Korean characters, which are
+     * written without spaces between words.
+     */
+    static boolean containsCjk(String text) {
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            if (CJK_BLOCKS.contains(Character.UnicodeBlock.of(codePoint))) {
+                return true;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return false;
+    }
+
+    /**
+     * Turns free text typed by the user into LIKE patterns, one per word, that match the word
+     * anywhere in a column. Wildcards in the input are escaped with a backslash.
+     */
+    static String[] buildLikePatterns(String query) {
+        ArrayList<String> patterns = new ArrayList<String>();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            String escaped = word.replace("\\", "\\\\").replace("%", "\\%")
+                    .replace("_", "\\_");
+            patterns.add("%" + escaped + "%");
         }
+        return patterns.toArray(new String[patterns.size()]);
+    }
 
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+    /**
+     * Returns the SQL expression that reads a column of the note's category.
+     */
+    private static String categoryColumn(String column) {
+        return "(SELECT " + NotePad.Categories.TABLE_NAME + "." + column + " FROM "
+                + NotePad.Categories.TABLE_NAME + " WHERE " + NotePad.Categories.TABLE_NAME + "."
+                + NotePad.Categories._ID + " = " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ")";
+    }
 
-        Cursor c = qb.query(
-                db,
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                orderBy
-        );
+    /**
+     * Returns the SQL expression that formats a packed ARGB color column as "#RRGGBB", for
+     * clients that still read colors as strings. It is built from substr() rather than printf(),
+     * which older platform SQLite builds lack.
+     */
+    private static String hexColor(String column) {
+        StringBuilder sql = new StringBuilder("'#'");
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            sql.append(" || substr('0123456789ABCDEF', ((").append(column).append(" >> ")
+                    .append(shift).append(") & 15) + 1, 1)");
+        }
+        return sql.toString();
+    }
 
-        c.setNotificationUri(getContext().getContentResolver(), uri);
-        return c;
+    /**
+     * Parses a "#RRGGBB" or "#AARRGGBB" color string, falling back to the default category color
+     * if it is missing or malformed.
+     */
+    static int parseColor(String color) {
+        if (color == null) {
+            return NotePad.Categories.DEFAULT_COLOR;
+        }
+        try {
+            return Color.parseColor(color);
+        } catch (IllegalArgumentException e) {
+            return NotePad.Categories.DEFAULT_COLOR;
+        }
     }
 
     @Override
@@ -274,8 +1084,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 return NotePad.Categories.CONTENT_ITEM_TYPE;
 
             case NOTES_BY_CATEGORY:
+            case NOTES_SEARCH:
                 return NotePad.Notes.CONTENT_TYPE;
 
+            case NOTE_BODY:
+                return ClipDescription.MIMETYPE_TEXT_PLAIN;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -284,14 +1098,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
+    static ClipDescription EXPORT_STREAM_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Notes.EXPORT_TYPE_NDJSON, NotePad.Notes.EXPORT_TYPE_CSV });
+
     @Override
     public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
         switch (sUriMatcher.match(uri)) {
             case NOTES:
+            case NOTES_BY_CATEGORY:
+                return EXPORT_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
             case LIVE_FOLDER_NOTES:
                 return null;
 
             case NOTE_ID:
+            case NOTE_BODY:
                 return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
 
             default:
@@ -304,6 +1125,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             throws FileNotFoundException {
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        int match = sUriMatcher.match(uri);
+        if (mimeTypes != null && match == NOTE_BODY) {
+            return new AssetFileDescriptor(openFile(uri, "r"), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
+        if (mimeTypes != null && (match == NOTES || match == NOTES_BY_CATEGORY)) {
+            NoteExporter exporter = new NoteExporter(mOpenHelper.getReadableDatabase(),
+                    mimeTypes[0], opts,
+                    match == NOTES_BY_CATEGORY ? Long.valueOf(ContentUris.parseId(uri)) : null);
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, exporter, mExportWriter), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         if (mimeTypes != null) {
             Cursor c = query(
                     uri,
@@ -331,20 +1167,27 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
                                 Bundle opts, Cursor c) {
-        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+        long start = System.nanoTime();
+        ProviderMetrics.CountingOutputStream fout = new ProviderMetrics.CountingOutputStream(
+                new FileOutputStream(output.getFileDescriptor()));
         PrintWriter pw = null;
         try {
             pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
             pw.println(c.getString(READ_NOTE_TITLE_INDEX));
             pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
+            copyBody(c.getLong(READ_NOTE_ID_INDEX), pw);
+            pw.println();
+        } catch (IOException e) {
             Log.w(TAG, "Ooops", e);
         } finally {
             c.close();
             if (pw != null) {
                 pw.flush();
             }
+            // Streams are recorded before the pipe closes, so a reader that reached the end
+            // of the stream finds them in the metrics.
+            mMetrics.record(ProviderMetrics.STREAM, sUriMatcher.match(uri), start, 1,
+                    fout.getCount());
             try {
                 fout.close();
             } catch (IOException e) {
@@ -352,27 +1195,474 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         }
     }
 
+    /**
+     * Streams an export through a small write buffer, so the pipe applies back pressure instead
+     * of the export piling up in memory.
+     */
+    private final PipeDataWriter<NoteExporter> mExportWriter =
+            new PipeDataWriter<NoteExporter>() {
+                @Override
+                public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                                            String mimeType, Bundle opts, NoteExporter exporter) {
+                    long start = System.nanoTime();
+                    ProviderMetrics.CountingOutputStream fout =
+                            new ProviderMetrics.CountingOutputStream(
+                                    new FileOutputStream(output.getFileDescriptor()));
+                    int exported = 0;
+                    try {
+                        Writer writer = new BufferedWriter(
+                                new OutputStreamWriter(fout, "UTF-8"), EXPORT_BUFFER_SIZE);
+                        exported = exporter.export(writer);
+                        writer.flush();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Export of " + uri + " stopped", e);
+                    } finally {
+                        mMetrics.record(ProviderMetrics.STREAM, sUriMatcher.match(uri), start,
+                                exported, fout.getCount());
+                        try {
+                            fout.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            };
+
+    /**
+     * Opens the body of a note as a UTF-8 text stream. Bodies are read and written in chunks of
+     * {@link NotePad.Notes#BODY_CHUNK_SIZE} characters, so a body is never held in memory as a
+     * whole. A written body replaces the old one in a single transaction once the stream is
+     * closed.
+     */
     @Override
-    public Uri insert(Uri uri, ContentValues initialValues) {
-        ContentValues values;
-        String table;
-        Uri contentUri;
-
-        if (initialValues != null) {
-            values = new ContentValues(initialValues);
-        } else {
-            values = new ContentValues();
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != NOTE_BODY) {
+            return super.openFile(uri, mode);
         }
 
-        Long now = Long.valueOf(System.currentTimeMillis());
+        long noteId = Long.parseLong(
+                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        awaitBodyWrite(noteId);
+        if (!noteExists(noteId)) {
+            throw new FileNotFoundException("No note for " + uri);
+        }
 
-        switch (sUriMatcher.match(uri)) {
-            case NOTES:
-                table = NotePad.Notes.TABLE_NAME;
-                contentUri = NotePad.Notes.CONTENT_ID_URI_BASE;
+        if (mode.contains("w")) {
+            return openBodyForWrite(noteId);
+        }
+        return openPipeHelper(uri, ClipDescription.MIMETYPE_TEXT_PLAIN, null, noteId,
+                new PipeDataWriter<Long>() {
+                    @Override
+                    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                                                String mimeType, Bundle opts, Long id) {
+                        long start = System.nanoTime();
+                        ProviderMetrics.CountingOutputStream fout =
+                                new ProviderMetrics.CountingOutputStream(
+                                        new FileOutputStream(output.getFileDescriptor()));
+                        try {
+                            Writer writer = new OutputStreamWriter(fout, "UTF-8");
+                            copyBody(id, writer);
+                            writer.flush();
+                        } catch (IOException e) {
+                            Log.w(TAG, "Failed to read body of note " + id, e);
+                        } finally {
+                            mMetrics.record(ProviderMetrics.STREAM, NOTE_BODY, start, 1,
+                                    fout.getCount());
+                            try {
+                                fout.close();
+                            } catch (IOException e) {
+                            }
+                        }
+                    }
+                });
+    }
 
-                if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE)) {
-                    values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+    /**
+     * Opens a stream that replaces the body of a note. What the client writes is copied to a
+     * staging file outside any transaction, so a slow client holds up no other write, and the
+     * body is swapped in by one short transaction once the stream is closed. A stream closed
+     * with an error, or left open by a client that died, leaves the old body in place; before
+     * API 19 a pipe cannot report either, and a closed stream always counts as complete.
+     */
+    private ParcelFileDescriptor openBodyForWrite(final long noteId) throws FileNotFoundException {
+        final File staging;
+        final ParcelFileDescriptor[] pipe;
+        try {
+            staging = File.createTempFile("body-" + noteId, null, getContext().getCacheDir());
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to open body of note " + noteId);
+        }
+        try {
+            pipe = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    ? ParcelFileDescriptor.createReliablePipe()
+                    : ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            staging.delete();
+            throw new FileNotFoundException("Unable to open body of note " + noteId);
+        }
+
+        Thread writer = new Thread("NoteBodyWriter-" + noteId) {
+            @Override
+            public void run() {
+                boolean stored = false;
+                try {
+                    stageBody(pipe[0], staging);
+                    storeBody(noteId, staging);
+                    stored = true;
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Failed to store body of note " + noteId, e);
+                } finally {
+                    staging.delete();
+                    synchronized (mBodyWriters) {
+                        if (mBodyWriters.get(noteId) == this) {
+                            mBodyWriters.remove(noteId);
+                        }
+                    }
+                }
+                if (stored) {
+                    notifyChange(noteChangeUri(noteId, NotePad.Notes.CHANGE_UPDATE,
+                            Collections.singleton(NotePad.Notes.COLUMN_NAME_NOTE)));
+                }
+            }
+        };
+        synchronized (mBodyWriters) {
+            mBodyWriters.put(noteId, writer);
+        }
+        writer.start();
+        return pipe[1];
+    }
+
+    /**
+     * Copies what the client writes to the pipe into the staging file. Throws if the client
+     * closed the pipe with an error or died before closing it.
+     */
+    private static void stageBody(ParcelFileDescriptor source, File staging)
+            throws IOException {
+        try {
+            InputStream in = new FileInputStream(source.getFileDescriptor());
+            OutputStream out = new FileOutputStream(staging);
+            try {
+                byte[] buffer = new byte[EXPORT_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                source.checkError();
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Replaces the body of a note with the staged text in a single transaction.
+     */
+    private void storeBody(long noteId, File staging) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(staging), "UTF-8");
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mNoteCache.beginWrite();
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                writeBody(db, noteId, reader);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            mNoteCache.evict(noteId);
+            mNoteCache.endWrite();
+            reader.close();
+        }
+    }
+
+    /**
+     * Waits until a body being written to the note has been stored, so that a client reading a
+     * note after closing its body stream sees what it wrote.
+     */
+    private void awaitBodyWrite(long noteId) {
+        Thread writer;
+        synchronized (mBodyWriters) {
+            writer = mBodyWriters.get(noteId);
+        }
+        if (writer == null || writer == Thread.currentThread()) {
+            return;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean noteExists(long noteId) {
+        Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes._ID },
+                NotePad.Notes._ID + " = " + noteId + " AND " + NOT_DELETED,
+                null, null, null, null);
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Writes the body of a note to out, one stored chunk at a time.
+     */
+    private void copyBody(long noteId, Writer out) throws IOException {
+        String id = Long.toString(noteId);
+        Cursor c = mOpenHelper.getReadableDatabase().rawQuery(READ_BODY_SQL,
+                new String[] { id, id });
+        try {
+            while (c.moveToNext()) {
+                String text = c.getString(0);
+                if (text != null) {
+                    out.write(text);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Replaces the body of a note with the text read from reader. The first chunk becomes the
+     * note column, which the list and the full-text index read, and the rest is stored in the
+     * chunks table. Must be called inside a transaction.
+     */
+    private void writeBody(SQLiteDatabase db, long noteId, Reader reader) throws IOException {
+        PushbackReader chunks = new PushbackReader(reader, 1);
+        char[] buffer = new char[NotePad.Notes.BODY_CHUNK_SIZE];
+        String head = readChunk(chunks, buffer);
+
+        // The old chunks go first, so that the index triggers do not read them with the new head.
+        db.delete(NotePad.Notes.CHUNKS_TABLE_NAME, "note_id = " + noteId, null);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, head != null ? head : "");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+        if (db.update(NotePad.Notes.TABLE_NAME, values,
+                NotePad.Notes._ID + " = " + noteId + " AND " + NOT_DELETED, null) == 0) {
+            throw new FileNotFoundException("Note " + noteId + " was deleted");
+        }
+
+        writeChunks(db, noteId, chunks, buffer);
+    }
+
+    /**
+     * Stores the text left in reader as the chunks of a note that has none, and indexes the
+     * note's full body if there were any. The index triggers on the notes table ran when the
+     * head was written, before the chunks existed.
+     */
+    private static void writeChunks(SQLiteDatabase db, long noteId, PushbackReader reader,
+                                    char[] buffer) throws IOException {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                + NotePad.Notes.CHUNKS_TABLE_NAME + " (note_id, seq, text) VALUES (?, ?, ?)");
+        int seq = 0;
+        try {
+            String chunk;
+            for (; (chunk = readChunk(reader, buffer)) != null; seq++) {
+                insert.bindLong(1, noteId);
+                insert.bindLong(2, seq);
+                insert.bindString(3, chunk);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+
+        if (seq > 0) {
+            db.execSQL("DELETE FROM " + NotePad.Notes.FTS_TABLE_NAME + " WHERE docid = "
+                    + noteId);
+            db.execSQL("INSERT INTO " + NotePad.Notes.FTS_TABLE_NAME + "(docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", " + DatabaseHelper.fullBody(NotePad.Notes.TABLE_NAME) + " FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = "
+                    + noteId);
+        }
+    }
+
+    /**
+     * Reads the next chunk of at most buffer.length characters, or returns null at the end of
+     * the text. A chunk never ends between the two halves of a surrogate pair.
+     */
+    private static String readChunk(PushbackReader reader, char[] buffer) throws IOException {
+        int length = 0;
+        int read;
+        while (length < buffer.length
+                && (read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        if (length == 0) {
+            return null;
+        }
+        if (length == buffer.length && Character.isHighSurrogate(buffer[length - 1])) {
+            reader.unread(buffer[--length]);
+        }
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * Moves a body too long for the note column out of values: values keeps the first chunk,
+     * and the whole body is returned so that the rest can be stored as chunks. Returns null if
+     * values holds no body or the body fits in the note column.
+     */
+    static String takeLongBody(ContentValues values) {
+        String body = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (body == null || body.length() <= NotePad.Notes.BODY_CHUNK_SIZE) {
+            return null;
+        }
+        int headLength = NotePad.Notes.BODY_CHUNK_SIZE;
+        if (Character.isHighSurrogate(body.charAt(headLength - 1))) {
+            headLength--;
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.substring(0, headLength));
+        return body;
+    }
+
+    /**
+     * Stores everything after the head of body as chunks of the note.
+     */
+    static void writeLongBody(SQLiteDatabase db, long noteId, String body, int headLength) {
+        try {
+            PushbackReader reader = new PushbackReader(new StringReader(body), 1);
+            reader.skip(headLength);
+            writeChunks(db, noteId, reader, new char[NotePad.Notes.BODY_CHUNK_SIZE]);
+        } catch (IOException e) {
+            // A StringReader does not throw.
+            throw new SQLException("Failed to store body of note " + noteId);
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues initialValues) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        Uri insertedUri = null;
+        try {
+            if (match == NOTES) {
+                insertedUri = insertNoteFast(initialValues);
+            }
+            if (insertedUri == null) {
+                insertedUri = insertRow(uri, initialValues);
+            }
+            return insertedUri;
+        } finally {
+            mMetrics.record(ProviderMetrics.INSERT, match, start,
+                    insertedUri != null ? 1 : 0, 0);
+        }
+    }
+
+    /**
+     * Inserts a note through a compiled statement if values only hold columns the statement
+     * binds and a body that fits in the note column, and returns its URI. Returns null for any
+     * other shape, which takes the general path.
+     */
+    private Uri insertNoteFast(ContentValues values) {
+        String title = null;
+        String body = null;
+        Long created = null;
+        Long modified = null;
+        Long todoStatus = null;
+        Long categoryId = null;
+        String category = null;
+        if (values != null) {
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (value == null) {
+                    return null;
+                } else if (NotePad.Notes.COLUMN_NAME_TITLE.equals(key)) {
+                    title = value.toString();
+                } else if (NotePad.Notes.COLUMN_NAME_NOTE.equals(key)) {
+                    body = value.toString();
+                } else if (NotePad.Notes.COLUMN_NAME_CATEGORY.equals(key)) {
+                    category = value.toString();
+                } else if (NotePad.Notes.COLUMN_NAME_CREATE_DATE.equals(key)) {
+                    created = values.getAsLong(key);
+                } else if (NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE.equals(key)) {
+                    modified = values.getAsLong(key);
+                } else if (NotePad.Notes.COLUMN_NAME_TODO_STATUS.equals(key)) {
+                    todoStatus = values.getAsLong(key);
+                } else if (NotePad.Notes.COLUMN_NAME_CATEGORY_ID.equals(key)) {
+                    categoryId = values.getAsLong(key);
+                } else {
+                    return null;
+                }
+            }
+            // Values that do not read as numbers are stored as they are by the general path.
+            if ((created == null && values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE))
+                    || (modified == null
+                    && values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE))
+                    || (todoStatus == null
+                    && values.containsKey(NotePad.Notes.COLUMN_NAME_TODO_STATUS))
+                    || (categoryId == null
+                    && values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID))) {
+                return null;
+            }
+        }
+        if (body != null && body.length() > NotePad.Notes.BODY_CHUNK_SIZE) {
+            return null;
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        if (categoryId == null) {
+            categoryId = getCategoryId(db, category != null ? category : DEFAULT_CATEGORY);
+        }
+        long rowId = NoteStatements.forThread(db).insertNote(
+                title != null ? title : getUntitled(),
+                body != null ? body : "",
+                created != null ? created : now,
+                modified != null ? modified : now,
+                todoStatus != null ? todoStatus : 0,
+                categoryId);
+        if (rowId <= 0) {
+            return null;
+        }
+        notifyChange(noteChangeUri(rowId, NotePad.Notes.CHANGE_INSERT, null));
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+    }
+
+    /**
+     * Returns the title of notes inserted without one. It is read once per process, so a
+     * change of the system language applies to notes inserted after a restart.
+     */
+    private static String getUntitled() {
+        if (sUntitled == null) {
+            sUntitled = Resources.getSystem().getString(android.R.string.untitled);
+        }
+        return sUntitled;
+    }
+
+    private Uri insertRow(Uri uri, ContentValues initialValues) {
+        ContentValues values;
+        String table;
+        Uri contentUri;
+
+        if (initialValues != null) {
+            values = new ContentValues(initialValues);
+        } else {
+            values = new ContentValues();
+        }
+
+        Long now = Long.valueOf(System.currentTimeMillis());
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case NOTES:
+                table = NotePad.Notes.TABLE_NAME;
+                contentUri = NotePad.Notes.CONTENT_ID_URI_BASE;
+
+                if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE)) {
+                    values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
                 }
 
                 if (!values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)) {
@@ -380,8 +1670,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 }
 
                 if (!values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
-                    Resources r = Resources.getSystem();
-                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
+                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, getUntitled());
                 }
 
                 if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
@@ -392,11 +1681,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     values.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, 0);
                 }
 
-                if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
-                    values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "其他");
-                }
-                if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR)) {
-                    values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR, "#9E9E9E");
+                resolveCategory(db, values);
+                if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID)) {
+                    values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                            getCategoryId(db, DEFAULT_CATEGORY));
                 }
                 break;
 
@@ -408,8 +1696,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     throw new SQLException("Category name is required");
                 }
 
+                normalizeColor(values, NotePad.Categories.COLUMN_NAME_COLOR);
                 if (!values.containsKey(NotePad.Categories.COLUMN_NAME_COLOR)) {
-                    values.put(NotePad.Categories.COLUMN_NAME_COLOR, "#9E9E9E");
+                    values.put(NotePad.Categories.COLUMN_NAME_COLOR,
+                            NotePad.Categories.DEFAULT_COLOR);
                 }
                 break;
 
@@ -417,17 +1707,38 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String longBody = match == NOTES ? takeLongBody(values) : null;
 
-        long rowId = db.insert(
-                table,
-                null,
-                values
-        );
+        long rowId;
+        if (longBody == null) {
+            rowId = db.insert(
+                    table,
+                    null,
+                    values
+            );
+        } else {
+            db.beginTransactionNonExclusive();
+            try {
+                rowId = db.insert(table, null, values);
+                if (rowId > 0) {
+                    writeLongBody(db, rowId, longBody,
+                            values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE).length());
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        if (match == CATEGORIES) {
+            invalidateCategoryIds();
+        }
 
         if (rowId > 0) {
             Uri insertedUri = ContentUris.withAppendedId(contentUri, rowId);
-            getContext().getContentResolver().notifyChange(insertedUri, null);
+            notifyChange(match == NOTES
+                    ? noteChangeUri(rowId, NotePad.Notes.CHANGE_INSERT, null)
+                    : insertedUri);
             return insertedUri;
         }
 
@@ -436,17 +1747,69 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        int count = 0;
+        mNoteCache.beginWrite();
+        try {
+            if (match == NOTE_ID && where == null) {
+                count = deleteNoteFast(ContentUris.parseId(uri));
+            } else {
+                count = deleteRows(uri, where, whereArgs);
+            }
+            return count;
+        } finally {
+            mNoteCache.endWrite();
+            mMetrics.record(ProviderMetrics.DELETE, match, start, count, 0);
+        }
+    }
+
+    /**
+     * Marks one note deleted through a compiled statement.
+     */
+    private int deleteNoteFast(long noteId) {
+        int count = NoteStatements.forThread(mOpenHelper.getWritableDatabase())
+                .deleteNote(noteId, System.currentTimeMillis());
+        mNoteCache.evict(noteId);
+        if (count > 0) {
+            mPurger.schedule();
+        }
+        notifyChange(noteChangeUri(noteId, NotePad.Notes.CHANGE_DELETE, null));
+        return count;
+    }
+
+    /**
+     * Marks the notes that match a selection deleted, and schedules the purge that removes
+     * them. Only the deleted_at column is written, so however many notes match, their list
+     * index and full-text entries are left for the purge.
+     */
+    private int markNotesDeleted(SQLiteDatabase db, String where, String[] whereArgs) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        int count = db.update(NotePad.Notes.TABLE_NAME, values, notDeleted(where), whereArgs);
+        if (count > 0) {
+            mPurger.schedule();
+        }
+        return count;
+    }
+
+    /**
+     * Narrows a selection on the notes table to the notes that are not deleted.
+     */
+    private static String notDeleted(String where) {
+        return where != null ? NOT_DELETED + " AND (" + where + ")" : NOT_DELETED;
+    }
+
+    private int deleteRows(Uri uri, String where, String[] whereArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         String finalWhere;
         int count;
+        Uri changeUri = uri;
 
         switch (sUriMatcher.match(uri)) {
             case NOTES:
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,
-                        where,
-                        whereArgs
-                );
+                evictCachedNotes(db, where, whereArgs);
+                count = markNotesDeleted(db, where, whereArgs);
                 break;
 
             case NOTE_ID:
@@ -461,11 +1824,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,
-                        finalWhere,
-                        whereArgs
-                );
+                count = markNotesDeleted(db, finalWhere, whereArgs);
+                mNoteCache.evict(ContentUris.parseId(uri));
+                changeUri = noteChangeUri(
+                        ContentUris.parseId(uri), NotePad.Notes.CHANGE_DELETE, null);
                 break;
 
             case CATEGORIES:
@@ -474,6 +1836,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                         where,
                         whereArgs
                 );
+                invalidateCategoryIds();
+                mNoteCache.evictAll();
+
+                if (count > 0) {
+                    moveNotesToDefaultCategory(db,
+                            NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " NOT IN (SELECT "
+                                    + NotePad.Categories._ID + " FROM "
+                                    + NotePad.Categories.TABLE_NAME + ")",
+                            null);
+                }
                 break;
 
             case CATEGORY_ID:
@@ -487,41 +1859,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
-                Cursor cursor = db.query(
-                        NotePad.Categories.TABLE_NAME,
-                        new String[]{NotePad.Categories.COLUMN_NAME_NAME},
-                        finalWhere,
-                        whereArgs,
-                        null,
-                        null,
-                        null
-                );
-
-                String categoryName = null;
-                if (cursor != null && cursor.moveToFirst()) {
-                    categoryName = cursor.getString(0);
-                    cursor.close();
-                }
-
                 count = db.delete(
                         NotePad.Categories.TABLE_NAME,
                         finalWhere,
                         whereArgs
                 );
+                invalidateCategoryIds();
+                mNoteCache.evictCategory(ContentUris.parseId(uri));
 
-                if (count > 0 && categoryName != null) {
-                    ContentValues updateValues = new ContentValues();
-                    updateValues.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "其他");
-                    updateValues.put(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR, "#9E9E9E");
-
-                    db.update(
-                            NotePad.Notes.TABLE_NAME,
-                            updateValues,
-                            NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?",
-                            new String[]{categoryName}
-                    );
-
-                    getContext().getContentResolver().notifyChange(NotePad.Notes.CONTENT_URI, null);
+                if (count > 0) {
+                    moveNotesToDefaultCategory(db,
+                            NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                            new String[]{uri.getPathSegments().get(1)});
                 }
                 break;
 
@@ -529,29 +1878,103 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(changeUri);
 
         return count;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        long start = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        int count = 0;
+        mNoteCache.beginWrite();
+        try {
+            int updated = match == NOTE_ID && where == null
+                    ? updateNoteFast(ContentUris.parseId(uri), values)
+                    : -1;
+            count = updated >= 0 ? updated : updateRows(uri, values, where, whereArgs);
+            return count;
+        } finally {
+            mNoteCache.endWrite();
+            mMetrics.record(ProviderMetrics.UPDATE, match, start, count, 0);
+        }
+    }
+
+    /**
+     * Saves the body, with or without the title, or the todo status of one note through a
+     * compiled statement, along with the modification date if values hold one. Returns -1 for
+     * any other shape of values, which takes the general path.
+     */
+    private int updateNoteFast(long noteId, ContentValues values) {
+        String title = null;
+        String body = null;
+        Long todoStatus = null;
+        boolean dated = false;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            String key = entry.getKey();
+            if (entry.getValue() == null) {
+                return -1;
+            } else if (NotePad.Notes.COLUMN_NAME_TITLE.equals(key)) {
+                title = entry.getValue().toString();
+            } else if (NotePad.Notes.COLUMN_NAME_NOTE.equals(key)) {
+                body = entry.getValue().toString();
+            } else if (NotePad.Notes.COLUMN_NAME_TODO_STATUS.equals(key)) {
+                todoStatus = values.getAsLong(key);
+                if (todoStatus == null) {
+                    return -1;
+                }
+            } else if (NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE.equals(key)) {
+                dated = true;
+            } else {
+                return -1;
+            }
+        }
+        // Like the general path, a written modification date is replaced with the current time.
+        Long modified = dated ? Long.valueOf(System.currentTimeMillis()) : null;
+
+        NoteStatements statements = NoteStatements.forThread(mOpenHelper.getWritableDatabase());
+        int count;
+        if (body != null && todoStatus == null
+                && body.length() <= NotePad.Notes.BODY_CHUNK_SIZE) {
+            count = statements.updateBody(noteId, title, body, modified);
+        } else if (todoStatus != null && body == null && title == null) {
+            count = statements.updateTodoStatus(noteId, todoStatus, modified);
+        } else {
+            return -1;
+        }
+        mNoteCache.evict(noteId);
+        notifyChange(noteChangeUri(noteId, NotePad.Notes.CHANGE_UPDATE, values.keySet()));
+        return count;
+    }
+
+    private int updateRows(Uri uri, ContentValues values, String where, String[] whereArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
+        Uri changeUri = uri;
 
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case NOTES:
+            case NOTE_ID:
+                resolveCategory(db, values);
+                break;
+
+            case CATEGORIES:
+            case CATEGORY_ID:
+                normalizeColor(values, NotePad.Categories.COLUMN_NAME_COLOR);
+                break;
+        }
+
+        switch (match) {
             case NOTES:
                 if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)) {
                     Long now = Long.valueOf(System.currentTimeMillis());
                     values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
                 }
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME,
-                        values,
-                        where,
-                        whereArgs
-                );
+                evictCachedNotes(db, where, whereArgs);
+                count = updateNotes(db, values, notDeleted(where), whereArgs);
                 break;
 
             case NOTE_ID:
@@ -572,12 +1995,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME,
-                        values,
-                        finalWhere,
-                        whereArgs
-                );
+                count = updateNotes(db, values, notDeleted(finalWhere), whereArgs);
+                mNoteCache.evict(Long.parseLong(noteId));
+                changeUri = noteChangeUri(
+                        Long.parseLong(noteId), NotePad.Notes.CHANGE_UPDATE, values.keySet());
                 break;
 
             case CATEGORIES:
@@ -587,6 +2008,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                         where,
                         whereArgs
                 );
+                invalidateCategoryIds();
+                mNoteCache.evictAll();
+
+                if (count > 0) {
+                    notifyChange(NotePad.Notes.CONTENT_URI);
+                }
                 break;
 
             case CATEGORY_ID:
@@ -598,34 +2025,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                         NotePad.Categories._ID + " = " + categoryId,
                         whereArgs
                 );
+                invalidateCategoryIds();
+                mNoteCache.evictCategory(Long.parseLong(categoryId));
 
+                // Notes refer to the category by id, so a rename or recolor is this one row,
+                // and lists can patch the notes in the category instead of reloading.
                 if (count > 0) {
-                    Cursor cursor = db.query(
-                            NotePad.Categories.TABLE_NAME,
-                            new String[]{NotePad.Categories.COLUMN_NAME_NAME, NotePad.Categories.COLUMN_NAME_COLOR},
-                            NotePad.Categories._ID + " = " + categoryId,
-                            null,
-                            null,
-                            null,
-                            null
-                    );
-
-                    if (cursor != null && cursor.moveToFirst()) {
-                        String updatedName = cursor.getString(0);
-                        String updatedColor = cursor.getString(1);
-                        cursor.close();
-
-                        ContentValues noteValues = new ContentValues();
-                        noteValues.put(NotePad.Notes.COLUMN_NAME_CATEGORY, updatedName);
-                        noteValues.put(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR, updatedColor);
-
-                        db.update(
-                                NotePad.Notes.TABLE_NAME,
-                                noteValues,
-                                NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?",
-                                new String[]{updatedName}
-                        );
-                    }
+                    notifyChange(NotePad.Notes.CONTENT_URI.buildUpon()
+                            .appendQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_OP,
+                                    NotePad.Notes.CHANGE_CATEGORY)
+                            .appendQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_CATEGORY_ID,
+                                    categoryId)
+                            .build());
                 }
                 break;
 
@@ -633,12 +2044,316 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(changeUri);
 
         return count;
     }
 
+    /**
+     * Returns the URI a change to one note is announced on. It names the kind of change and,
+     * for an update, the columns written, so that observers can tell whether they need to
+     * reload.
+     */
+    static Uri noteChangeUri(long noteId, String op, Set<String> columns) {
+        Uri.Builder builder = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId)
+                .buildUpon()
+                .appendQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_OP, op);
+        if (columns != null) {
+            builder.appendQueryParameter(NotePad.Notes.NOTIFY_PARAMETER_COLUMNS,
+                    TextUtils.join(",", columns));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Updates notes. If values include a body, the chunks of the old bodies are replaced in the
+     * same transaction.
+     */
+    private int updateNotes(SQLiteDatabase db, ContentValues values, String where,
+                            String[] whereArgs) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+        }
+
+        String longBody = takeLongBody(values);
+        db.beginTransactionNonExclusive();
+        try {
+            ArrayList<Long> noteIds = new ArrayList<Long>();
+            if (longBody != null) {
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                        new String[] { NotePad.Notes._ID }, where, whereArgs,
+                        null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        noteIds.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+
+            db.delete(NotePad.Notes.CHUNKS_TABLE_NAME, "note_id IN (SELECT "
+                            + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                            + (where != null ? " WHERE " + where : "") + ")",
+                    whereArgs);
+            int count = db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+
+            int headLength = longBody != null
+                    ? values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE).length()
+                    : 0;
+            for (long noteId : noteIds) {
+                writeLongBody(db, noteId, longBody, headLength);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // The framework checks the provider's read and write permissions on queries, writes
+        // and files, but not on call(), so each method checks the permission it needs.
+        if (NotePad.Notes.METHOD_IMPORT.equals(method)) {
+            getContext().enforceCallingOrSelfPermission(PERMISSION_WRITE_NOTES,
+                    "Importing notes requires " + PERMISSION_WRITE_NOTES);
+            return importNotes(arg, extras);
+        } else if (NotePad.Notes.METHOD_CACHE_STATS.equals(method)) {
+            getContext().enforceCallingOrSelfPermission(PERMISSION_READ_NOTES,
+                    "Reading cache statistics requires " + PERMISSION_READ_NOTES);
+            return mNoteCache.stats();
+        } else if (NotePad.Notes.METHOD_METRICS.equals(method)) {
+            getContext().enforceCallingOrSelfPermission(PERMISSION_READ_NOTES,
+                    "Reading metrics requires " + PERMISSION_READ_NOTES);
+            return mMetrics.snapshot();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Imports the notes read from the stream in the extras, and returns how many were
+     * imported. Progress is sent to the optional receiver after every batch.
+     */
+    private Bundle importNotes(String mimeType, Bundle extras) {
+        if (!NotePad.Notes.EXPORT_TYPE_NDJSON.equals(mimeType)
+                && !NotePad.Notes.EXPORT_TYPE_CSV.equals(mimeType)) {
+            throw new IllegalArgumentException("Cannot import " + mimeType);
+        }
+        ParcelFileDescriptor source = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(NotePad.Notes.IMPORT_EXTRA_SOURCE)
+                : null;
+        if (source == null) {
+            throw new IllegalArgumentException("Missing import source");
+        }
+        final ResultReceiver receiver =
+                extras.getParcelable(NotePad.Notes.IMPORT_EXTRA_PROGRESS_RECEIVER);
+
+        NoteImporter importer = new NoteImporter(mOpenHelper.getWritableDatabase(), mimeType,
+                DEFAULT_CATEGORY);
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+        int imported;
+        try {
+            imported = importer.importNotes(new InputStreamReader(in, "UTF-8"),
+                    receiver == null ? null : new NoteImporter.ProgressListener() {
+                        @Override
+                        public void onProgress(int imported) {
+                            Bundle progress = new Bundle();
+                            progress.putInt(NotePad.Notes.IMPORT_RESULT_COUNT, imported);
+                            receiver.send(0, progress);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to import notes: " + e.getMessage(), e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+            if (importer.createdCategories()) {
+                invalidateCategoryIds();
+                notifyChange(NotePad.Categories.CONTENT_URI);
+            }
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.IMPORT_RESULT_COUNT, imported);
+        return result;
+    }
+
+    /**
+     * Inserts all rows in one transaction, yielding every {@link #BULK_INSERT_YIELD_INTERVAL}
+     * rows, and sends one change notification for the whole batch. Returns the number of
+     * rows inserted.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mBatchNotifications.set(new LinkedHashSet<Uri>());
+        mNoteCache.beginWrite();
+        int inserted = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0 && i % BULK_INSERT_YIELD_INTERVAL == 0) {
+                    db.yieldIfContendedSafely();
+                }
+                if (insert(uri, values[i]) != null) {
+                    inserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mNoteCache.endWrite();
+            endBatch();
+        }
+        return inserted;
+    }
+
+    /**
+     * Applies the operations in one transaction and sends one change notification per table
+     * for the whole batch. The transaction is committed early only at operations that allow
+     * yielding, so a batch without yield points is applied atomically.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mBatchNotifications.set(new LinkedHashSet<Uri>());
+        mNoteCache.beginWrite();
+        db.beginTransactionNonExclusive();
+        try {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            mNoteCache.endWrite();
+            endBatch();
+        }
+    }
+
+    /**
+     * Sends a change notification, or holds it back until the end of the batch running on
+     * this thread. Held back notifications for single rows are widened to their table, so that
+     * a batch notifies each table once.
+     */
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> pending = mBatchNotifications.get();
+        if (pending == null) {
+            long start = System.nanoTime();
+            getContext().getContentResolver().notifyChange(uri, null);
+            mMetrics.record(ProviderMetrics.NOTIFY, sUriMatcher.match(uri), start, 0, 0);
+            return;
+        }
+        switch (sUriMatcher.match(uri)) {
+            case NOTE_ID:
+                pending.add(NotePad.Notes.CONTENT_URI);
+                break;
+            case CATEGORY_ID:
+                pending.add(NotePad.Categories.CONTENT_URI);
+                break;
+            default:
+                pending.add(uri);
+                break;
+        }
+    }
+
+    /**
+     * Sends the notifications held back by the batch. They are sent even if the batch failed,
+     * since rows committed at a yield point are kept.
+     */
+    private void endBatch() {
+        LinkedHashSet<Uri> pending = mBatchNotifications.get();
+        mBatchNotifications.remove();
+        for (Uri uri : pending) {
+            notifyChange(uri);
+        }
+    }
+
+    /**
+     * Stores a color written as a "#RRGGBB" string by an older client as a packed ARGB integer.
+     */
+    private static void normalizeColor(ContentValues values, String key) {
+        Object color = values.get(key);
+        if (color instanceof String) {
+            values.put(key, parseColor((String) color));
+        }
+    }
+
+    /**
+     * Replaces a category name written by a client with the id of that category, falling back
+     * to the default category for unknown names. A note's color comes from its category, so a
+     * color written for a note is dropped.
+     */
+    private void resolveCategory(SQLiteDatabase db, ContentValues values) {
+        values.remove(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR);
+        values.remove(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR_HEX);
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            String category = values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+            values.remove(NotePad.Notes.COLUMN_NAME_CATEGORY);
+            if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID)) {
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, getCategoryId(db, category));
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the named category, or of the default category if there is no such
+     * category. The ids are read once and kept until a category is written.
+     */
+    private Long getCategoryId(SQLiteDatabase db, String category) {
+        synchronized (mCategoryIds) {
+            if (!mCategoryIdsLoaded) {
+                Cursor c = db.query(
+                        NotePad.Categories.TABLE_NAME,
+                        new String[] {
+                                NotePad.Categories.COLUMN_NAME_NAME,
+                                NotePad.Categories._ID },
+                        null, null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        mCategoryIds.put(c.getString(0), c.getLong(1));
+                    }
+                } finally {
+                    c.close();
+                }
+                mCategoryIdsLoaded = true;
+            }
+            Long id = mCategoryIds.get(category);
+            return id != null ? id : mCategoryIds.get(DEFAULT_CATEGORY);
+        }
+    }
+
+    private void invalidateCategoryIds() {
+        synchronized (mCategoryIds) {
+            mCategoryIds.clear();
+            mCategoryIdsLoaded = false;
+        }
+    }
+
+    private void moveNotesToDefaultCategory(SQLiteDatabase db, String where, String[] whereArgs) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, getCategoryId(db, DEFAULT_CATEGORY));
+        if (db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs) > 0) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+    }
+
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    NotePurger getPurgerForTest() {
+        return mPurger;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,116 @@
+package com.example.android.notepad;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Removes deleted notes in the background. Deleting a note only sets its
+ * {@link NotePad.Notes#COLUMN_NAME_DELETED_AT} column; the purge deletes the row later, and
+ * with it the note's chunks, its full-text entry and its entries in the list indexes.
+ *
+ * The purge starts once no note has been deleted for {@link #IDLE_DELAY_MILLIS}, so deleting
+ * notes one after another is followed by a single purge. It removes at most
+ * {@link #BATCH_SIZE} notes per statement and pauses between batches, so a write made while it
+ * runs waits for one short batch at most. A delete during the purge puts the rest off again.
+ */
+final class NotePurger {
+    private static final String TAG = "NotePurger";
+
+    static final int BATCH_SIZE = 200;
+
+    private static final long IDLE_DELAY_MILLIS = 5000;
+
+    private static final long BATCH_INTERVAL_MILLIS = 100;
+
+    // Every deleted note has a positive deleted_at, and a range is looked up through
+    // notes_deleted_index, where IS NOT NULL may not be.
+    private static final String PURGE_SQL = "DELETE FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes._ID + " FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_DELETED_AT
+            + " > 0 LIMIT " + BATCH_SIZE + ")";
+
+    private final SQLiteOpenHelper mOpenHelper;
+
+    private HandlerThread mThread;
+
+    private Handler mHandler;
+
+    private final Runnable mPurgeBatch = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (purgeBatch() == BATCH_SIZE) {
+                    postNextBatch();
+                }
+            } catch (SQLiteException e) {
+                // The notes stay hidden, and are purged by the next scheduled run.
+                Log.w(TAG, "Failed to purge deleted notes", e);
+            }
+        }
+    };
+
+    NotePurger(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    /**
+     * Purges the deleted notes once no note has been deleted for a while. The thread the purge
+     * runs on is started by the first call.
+     */
+    synchronized void schedule() {
+        if (mHandler == null) {
+            mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        mHandler.removeCallbacks(mPurgeBatch);
+        mHandler.postDelayed(mPurgeBatch, IDLE_DELAY_MILLIS);
+    }
+
+    private synchronized void postNextBatch() {
+        if (mHandler != null) {
+            mHandler.postDelayed(mPurgeBatch, BATCH_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Drops the scheduled purge and stops the thread. The notes stay deleted.
+     */
+    synchronized void quit() {
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    /**
+     * Purges every deleted note on the calling thread, one batch at a time, and returns the
+     * number of notes purged.
+     */
+    int purgeAll() {
+        int total = 0;
+        int count;
+        do {
+            count = purgeBatch();
+            total += count;
+        } while (count == BATCH_SIZE);
+        return total;
+    }
+
+    private int purgeBatch() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement purge = db.compileStatement(PURGE_SQL);
+        try {
+            return purge.executeUpdateDelete();
+        } finally {
+            purge.close();
+        }
+    }
+}
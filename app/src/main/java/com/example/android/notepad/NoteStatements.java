@@ -0,0 +1,142 @@
+package com.example.android.notepad;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Compiled statements for the writes the app makes most often: inserting a note, saving its
+ * body, toggling its todo status and marking it deleted. Arguments are bound directly, so these
+ * writes build no SQL and copy no ContentValues.
+ *
+ * Bindings are per statement, so each thread uses its own instance; see {@link #forThread}.
+ * Preparing the SQL is still shared, through the connection's statement cache.
+ */
+final class NoteStatements {
+
+    private static final ThreadLocal<NoteStatements> sStatements =
+            new ThreadLocal<NoteStatements>();
+
+    private final SQLiteDatabase mDb;
+    private SQLiteStatement mInsertNote;
+    private SQLiteStatement mUpdateBody;
+    private SQLiteStatement mDeleteChunks;
+    private SQLiteStatement mUpdateTodoStatus;
+    private SQLiteStatement mDeleteNote;
+
+    private NoteStatements(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Returns the statements of the calling thread for the database.
+     */
+    static NoteStatements forThread(SQLiteDatabase db) {
+        NoteStatements statements = sStatements.get();
+        if (statements == null || statements.mDb != db) {
+            statements = new NoteStatements(db);
+            sStatements.set(statements);
+        }
+        return statements;
+    }
+
+    long insertNote(String title, String body, long created, long modified, long todoStatus,
+                    Long categoryId) {
+        if (mInsertNote == null) {
+            mInsertNote = mDb.compileStatement("INSERT INTO " + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_TODO_STATUS + ", "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ") VALUES (?, ?, ?, ?, ?, ?)");
+        }
+        mInsertNote.bindString(1, title);
+        mInsertNote.bindString(2, body);
+        mInsertNote.bindLong(3, created);
+        mInsertNote.bindLong(4, modified);
+        mInsertNote.bindLong(5, todoStatus);
+        if (categoryId != null) {
+            mInsertNote.bindLong(6, categoryId);
+        } else {
+            mInsertNote.bindNull(6);
+        }
+        return mInsertNote.executeInsert();
+    }
+
+    /**
+     * Replaces the body of a note with one that fits in the note column, dropping the chunks
+     * of a longer old body. A null title or modified date leaves that column alone.
+     */
+    int updateBody(long noteId, String title, String body, Long modified) {
+        if (mUpdateBody == null) {
+            mUpdateBody = mDb.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " = COALESCE(?, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + "), "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " = ?, "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = COALESCE(?, "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ") WHERE "
+                    + NotePad.Notes._ID + " = ? AND " + NotePadProvider.NOT_DELETED);
+            mDeleteChunks = mDb.compileStatement("DELETE FROM "
+                    + NotePad.Notes.CHUNKS_TABLE_NAME + " WHERE note_id = ?");
+        }
+        mDb.beginTransactionNonExclusive();
+        try {
+            mDeleteChunks.bindLong(1, noteId);
+            mDeleteChunks.executeUpdateDelete();
+
+            if (title != null) {
+                mUpdateBody.bindString(1, title);
+            } else {
+                mUpdateBody.bindNull(1);
+            }
+            mUpdateBody.bindString(2, body);
+            bindDate(mUpdateBody, 3, modified);
+            mUpdateBody.bindLong(4, noteId);
+            int count = mUpdateBody.executeUpdateDelete();
+            mDb.setTransactionSuccessful();
+            return count;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Sets the todo status of a note. A null modified date leaves the date alone.
+     */
+    int updateTodoStatus(long noteId, long todoStatus, Long modified) {
+        if (mUpdateTodoStatus == null) {
+            mUpdateTodoStatus = mDb.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                    + " SET " + NotePad.Notes.COLUMN_NAME_TODO_STATUS + " = ?, "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = COALESCE(?, "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ") WHERE "
+                    + NotePad.Notes._ID + " = ? AND " + NotePadProvider.NOT_DELETED);
+        }
+        mUpdateTodoStatus.bindLong(1, todoStatus);
+        bindDate(mUpdateTodoStatus, 2, modified);
+        mUpdateTodoStatus.bindLong(3, noteId);
+        return mUpdateTodoStatus.executeUpdateDelete();
+    }
+
+    /**
+     * Marks a note deleted at the given time. The row, its chunks and its index entries are
+     * removed later by {@link NotePurger}.
+     */
+    int deleteNote(long noteId, long deletedAt) {
+        if (mDeleteNote == null) {
+            mDeleteNote = mDb.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_DELETED_AT + " = ? WHERE "
+                    + NotePad.Notes._ID + " = ? AND " + NotePadProvider.NOT_DELETED);
+        }
+        mDeleteNote.bindLong(1, deletedAt);
+        mDeleteNote.bindLong(2, noteId);
+        return mDeleteNote.executeUpdateDelete();
+    }
+
+    private static void bindDate(SQLiteStatement statement, int index, Long date) {
+        if (date != null) {
+            statement.bindLong(index, date);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
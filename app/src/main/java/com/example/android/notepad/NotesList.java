@@ -3,12 +3,16 @@ package com.example.android.notepad;
 import com.example.android.notepad.NotePad;
 
 import android.app.ListActivity;
+import android.app.LoaderManager;
 import android.content.ClipboardManager;
 import android.content.ClipData;
+import android.content.ContentResolver;
 import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.content.Loader;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.content.ContentValues;
 import android.net.Uri;
@@ -21,13 +25,17 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.SubMenu;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.Button;
+import android.widget.CursorAdapter;
 import android.widget.ImageView;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
+import android.widget.ResourceCursorAdapter;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.EditText;
@@ -36,48 +44,72 @@ import android.content.DialogInterface;
 import android.content.res.Configuration;
 import android.view.MenuItem;
 import android.widget.Toast;
-import java.text.SimpleDateFormat;
 import android.view.LayoutInflater;
-import android.graphics.Color;
 import android.widget.Toast;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Calendar;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class NotesList extends ListActivity {
+public class NotesList extends ListActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
     private static final String TAG = "NotesList";
 
+    private static final int LOADER_NOTES = 0;
+
+    // Runs todo toggles and deletes off the UI thread, one at a time and in order.
+    private static final ExecutorService sWriteExecutor = Executors.newSingleThreadExecutor();
+
     private String mSearchFilter = null;
 
     private static final int SEARCH_REQUEST = 1;
 
-    private static final String[] PROJECTION = new String[] {
+    static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
-            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
             NotePad.Notes.COLUMN_NAME_TODO_STATUS,
             NotePad.Notes.COLUMN_NAME_CATEGORY,
-            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR
+            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID
     };
 
+    static final String CATEGORY_SELECTION = NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?";
+
+    private static final int COLUMN_INDEX_ID = 0;
     private static final int COLUMN_INDEX_TITLE = 1;
-    private static final int COLUMN_INDEX_NOTE = 2;
+    private static final int COLUMN_INDEX_PREVIEW = 2;
     private static final int COLUMN_INDEX_MODIFICATION_DATE = 3;
     private static final int COLUMN_INDEX_TODO_STATUS = 4;
     private static final int COLUMN_INDEX_CATEGORY = 5;
     private static final int COL_CATEGORY_COLOR_INDEX = 6;
+    private static final int COLUMN_INDEX_CATEGORY_ID = 7;
 
     private Spinner mCategorySpinner;
     private Button mClearFilterButton;
+    private CategoryRegistry.Snapshot mFilterCategories;
     private String mCurrentFilterCategory = null;
 
+    private final CategoryRegistry.Listener mCategoryListener = new CategoryRegistry.Listener() {
+        @Override
+        public void onCategoriesChanged(CategoryRegistry.Snapshot snapshot) {
+            bindCategoryFilter(snapshot);
+        }
+    };
+
+    private final ThemeManager.Listener mThemeListener = new ThemeManager.Listener() {
+        @Override
+        public void onThemeChanged(ThemeManager.Theme theme) {
+            ThemeManager.applyBackgroundColor(NotesList.this, theme);
+            ((NotesAdapter) getListAdapter()).setFontSize(theme.getFontSize());
+        }
+    };
+
     private Spinner mSortSpinner;
     private String mCurrentSortOrder = NotePad.Notes.DEFAULT_SORT_ORDER;
 
-    private Cursor mCursor;
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -95,28 +127,22 @@ public class NotesList extends ListActivity {
 
         getListView().setOnCreateContextMenuListener(this);
 
+        initNoteList();
+
         initCategoryFilter();
 
         initSort();
 
-        refreshNoteList();
-    }
+        getLoaderManager().initLoader(LOADER_NOTES, null, this);
 
-    @Override
-    protected void onResume() {
-        super.onResume();
-        if (mCursor == null || mCursor.isClosed()) {
-            refreshNoteList();
-        }
+        ThemeManager.addListener(mThemeListener);
     }
 
     @Override
     protected void onDestroy() {
+        ThemeManager.removeListener(mThemeListener);
+        CategoryRegistry.get(this).removeListener(mCategoryListener);
         super.onDestroy();
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
-        }
     }
 
     @Override
@@ -183,36 +209,9 @@ public class NotesList extends ListActivity {
         mCategorySpinner = (Spinner) findViewById(R.id.category_spinner);
         mClearFilterButton = (Button) findViewById(R.id.clear_filter_button);
 
-        Cursor categoryCursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{NotePad.Categories.COLUMN_NAME_NAME},
-                null,
-                null,
-                NotePad.Categories.COLUMN_NAME_NAME + " ASC"
-        );
-
-        ArrayList<String> categories = new ArrayList<>();
-        categories.add("全部");
-
-        if (categoryCursor != null && categoryCursor.moveToFirst()) {
-            do {
-                String category = categoryCursor.getString(0);
-                if (category != null) {
-                    categories.add(category);
-                }
-            } while (categoryCursor.moveToNext());
-            categoryCursor.close();
-        } else if (categoryCursor != null) {
-            categoryCursor.close();
-        }
-
-        ArrayAdapter<String> categoryAdapter = new ArrayAdapter<>(
-                this,
-                android.R.layout.simple_spinner_item,
-                categories
-        );
-        categoryAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        mCategorySpinner.setAdapter(categoryAdapter);
+        CategoryRegistry registry = CategoryRegistry.get(this);
+        bindCategoryFilter(registry.getSnapshot());
+        registry.addListener(mCategoryListener);
 
         mCategorySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
@@ -220,7 +219,8 @@ public class NotesList extends ListActivity {
                 if (position == 0) {
                     mCurrentFilterCategory = null;
                 } else {
-                    mCurrentFilterCategory = (String) parent.getItemAtPosition(position);
+                    mCurrentFilterCategory =
+                            String.valueOf(mFilterCategories.getId(position - 1));
                 }
                 refreshNoteList();
             }
@@ -240,6 +240,34 @@ public class NotesList extends ListActivity {
         });
     }
 
+    /**
+     * Shows the categories of the snapshot in the filter spinner, keeping the selected category
+     * if it still exists.
+     */
+    private void bindCategoryFilter(CategoryRegistry.Snapshot snapshot) {
+        if (snapshot == mFilterCategories) {
+            return;
+        }
+        mFilterCategories = snapshot;
+
+        ArrayList<String> categories = new ArrayList<>(snapshot.size() + 1);
+        categories.add("全部");
+        categories.addAll(snapshot.getNames());
+
+        ArrayAdapter<String> categoryAdapter = new ArrayAdapter<>(
+                this,
+                android.R.layout.simple_spinner_item,
+                categories
+        );
+        categoryAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        mCategorySpinner.setAdapter(categoryAdapter);
+
+        if (mCurrentFilterCategory != null) {
+            int position = snapshot.indexOfId(Long.parseLong(mCurrentFilterCategory));
+            mCategorySpinner.setSelection(position + 1, false);
+        }
+    }
+
     private void initSort() {
         mSortSpinner = (Spinner) findViewById(R.id.sort_spinner);
 
@@ -264,10 +292,10 @@ public class NotesList extends ListActivity {
                         mCurrentSortOrder = NotePad.Notes.DEFAULT_SORT_ORDER;
                         break;
                     case 1:
-                        mCurrentSortOrder = NotePad.Notes.COLUMN_NAME_CATEGORY + " ASC";
+                        mCurrentSortOrder = NotePad.Notes.SORT_ORDER_CATEGORY;
                         break;
                     case 2:
-                        mCurrentSortOrder = NotePad.Notes.COLUMN_NAME_TODO_STATUS + " ASC";
+                        mCurrentSortOrder = NotePad.Notes.SORT_ORDER_TODO_STATUS;
                         break;
                     default:
                         mCurrentSortOrder = NotePad.Notes.DEFAULT_SORT_ORDER;
@@ -283,18 +311,23 @@ public class NotesList extends ListActivity {
     }
 
     private void refreshNoteList() {
+        getLoaderManager().restartLoader(LOADER_NOTES, null, this);
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         ArrayList<String> selectionParts = new ArrayList<>();
         ArrayList<String> selectionArgList = new ArrayList<>();
 
-        if (mSearchFilter != null && !mSearchFilter.isEmpty()) {
-            selectionParts.add("(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " +
-                    NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?)");
-            selectionArgList.add("%" + mSearchFilter + "%");
-            selectionArgList.add("%" + mSearchFilter + "%");
+        Uri queryUri = getIntent().getData();
+        if (mSearchFilter != null && !mSearchFilter.trim().isEmpty()) {
+            queryUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, mSearchFilter)
+                    .build();
         }
 
         if (mCurrentFilterCategory != null) {
-            selectionParts.add(NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?");
+            selectionParts.add(CATEGORY_SELECTION);
             selectionArgList.add(mCurrentFilterCategory);
         }
 
@@ -305,143 +338,313 @@ public class NotesList extends ListActivity {
             whereArgs = selectionArgList.toArray(new String[selectionArgList.size()]);
         }
 
-        if (mCursor != null) {
-            mCursor.close();
+        NoteListLoader loader = new NoteListLoader(this, queryUri, PROJECTION, where, whereArgs,
+                mCurrentSortOrder);
+        loader.setPatchListener(new NoteListLoader.PatchListener() {
+            @Override
+            public void onNotePatched(long noteId) {
+                rebindVisibleRows(noteId, -1);
+            }
+
+            @Override
+            public void onCategoryPatched(long categoryId) {
+                rebindVisibleRows(-1, categoryId);
+            }
+        });
+        return loader;
+    }
+
+    /**
+     * Restores the row a failed todo toggle patched, if the list is still showing the loader
+     * that was patched.
+     */
+    private void rollBackTodo(NoteListLoader loader, long noteId, Object[] before) {
+        if (isFinishing()) {
+            return;
+        }
+        if (before != null && getLoaderManager().getLoader(LOADER_NOTES) == loader) {
+            loader.putPatch(noteId, before);
         }
+        Toast.makeText(this, "待办状态更新失败", Toast.LENGTH_SHORT).show();
+    }
 
-        mCursor = getContentResolver().query(
-                getIntent().getData(),
-                PROJECTION,
-                where,
-                whereArgs,
-                mCurrentSortOrder
-        );
+    /**
+     * Binds the visible rows of a note or a category again after the loader patched them, so a
+     * single change costs one row bind instead of a reload of the list.
+     */
+    private void rebindVisibleRows(long noteId, long categoryId) {
+        ListView listView = getListView();
+        CursorAdapter adapter = (CursorAdapter) getListAdapter();
+        int first = listView.getFirstVisiblePosition();
+        for (int i = 0; i < listView.getChildCount(); i++) {
+            View view = listView.getChildAt(i);
+            NoteViewHolder holder = (NoteViewHolder) view.getTag();
+            if (holder == null
+                    || (holder.noteId != noteId && holder.categoryId != categoryId)) {
+                continue;
+            }
+            Cursor cursor = (Cursor) adapter.getItem(first + i);
+            if (cursor != null) {
+                adapter.bindView(view, this, cursor);
+            }
+        }
+    }
 
-        SimpleCursorAdapter adapter = (SimpleCursorAdapter) getListAdapter();
-        if (adapter == null) {
-            adapter = new SimpleCursorAdapter(
-                    this,
-                    R.layout.noteslist_item,
-                    mCursor,
-                    new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_CATEGORY },
-                    new int[] { android.R.id.text1, R.id.text2, R.id.category_text }
-            ) {
-                @Override
-                public void bindView(View view, Context context, Cursor cursor) {
-                    super.bindView(view, context, cursor);
-
-                    TextView noteView = (TextView) view.findViewById(R.id.text2);
-                    String noteContent = cursor.getString(COLUMN_INDEX_NOTE);
-                    long timestamp = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
-                    Date date = new Date(timestamp);
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-                    String dateText = dateFormat.format(date);
-                    noteView.setText(noteContent + "\n" + dateText);
-
-                    TextView titleView = (TextView) view.findViewById(android.R.id.text1);
-                    TextView categoryTextView = (TextView) view.findViewById(R.id.category_text);
-                    ThemeManager.applyFontSize(titleView, NotesList.this);
-                    ThemeManager.applyFontSize(noteView, NotesList.this);
-                    ThemeManager.applyFontSize(categoryTextView, NotesList.this);
-
-                    int todoStatus = cursor.getInt(COLUMN_INDEX_TODO_STATUS);
-                    ImageView todoIcon = (ImageView) view.findViewById(R.id.todo_icon);
-
-                    final long noteId = cursor.getLong(0);
-
-                    switch (todoStatus) {
-                        case NotePad.Notes.TODO_STATUS_PENDING:
-                            todoIcon.setImageResource(R.drawable.ic_todo_pending);
-                            todoIcon.setVisibility(View.VISIBLE);
-                            titleView.setPaintFlags(titleView.getPaintFlags() & (~android.graphics.Paint.STRIKE_THRU_TEXT_FLAG));
-                            break;
-                        case NotePad.Notes.TODO_STATUS_COMPLETED:
-                            todoIcon.setImageResource(R.drawable.ic_todo_completed);
-                            todoIcon.setVisibility(View.VISIBLE);
-                            titleView.setPaintFlags(titleView.getPaintFlags() | android.graphics.Paint.STRIKE_THRU_TEXT_FLAG);
-                            break;
-                        default:
-                            todoIcon.setImageResource(R.drawable.ic_todo_unchecked);
-                            todoIcon.setVisibility(View.VISIBLE);
-                            titleView.setPaintFlags(titleView.getPaintFlags() & (~android.graphics.Paint.STRIKE_THRU_TEXT_FLAG));
-                            break;
-                    }
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        ((CursorAdapter) getListAdapter()).swapCursor(data);
+    }
 
-                    todoIcon.setOnClickListener(new View.OnClickListener() {
-                        @Override
-                        public void onClick(View v) {
-                            Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), noteId);
-                            Cursor cursor = getContentResolver().query(
-                                    noteUri,
-                                    new String[]{NotePad.Notes.COLUMN_NAME_TODO_STATUS},
-                                    null,
-                                    null,
-                                    null
-                            );
-
-                            int currentTodoStatus = NotePad.Notes.TODO_STATUS_NONE;
-                            if (cursor != null && cursor.moveToFirst()) {
-                                currentTodoStatus = cursor.getInt(0);
-                                cursor.close();
-                            }
-
-                            int newStatus;
-                            if (currentTodoStatus == NotePad.Notes.TODO_STATUS_COMPLETED) {
-                                newStatus = NotePad.Notes.TODO_STATUS_PENDING;
-                            } else if (currentTodoStatus == NotePad.Notes.TODO_STATUS_PENDING) {
-                                newStatus = NotePad.Notes.TODO_STATUS_COMPLETED;
-                            } else {
-                                newStatus = NotePad.Notes.TODO_STATUS_PENDING;
-                            }
-
-                            android.content.ContentValues values = new android.content.ContentValues();
-                            values.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, newStatus);
-
-                            getContentResolver().update(
-                                    noteUri,
-                                    values,
-                                    null,
-                                    null
-                            );
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        ((CursorAdapter) getListAdapter()).swapCursor(null);
+    }
 
-                            refreshNoteList();
-                        }
-                    });
+    private void initNoteList() {
+        NotesAdapter adapter = new NotesAdapter(this);
+        setListAdapter(adapter);
 
-                    TextView categoryText = (TextView) view.findViewById(R.id.category_text);
-                    View categoryColorIndicator = view.findViewById(R.id.category_color_indicator);
-                    String category = cursor.getString(COLUMN_INDEX_CATEGORY);
-                    String categoryColor = cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR));
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
 
-                    if (category != null && !category.isEmpty()) {
-                        categoryText.setText(category);
-                        categoryText.setVisibility(View.VISIBLE);
-                    } else {
-                        categoryText.setVisibility(View.GONE);
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount
+                        >= totalItemCount - NoteListLoader.PAGE_SIZE / 2) {
+                    Loader<Cursor> loader = getLoaderManager().getLoader(LOADER_NOTES);
+                    if (loader != null) {
+                        ((NoteListLoader) loader).loadNextPage();
                     }
+                }
+            }
+        });
+    }
 
-                    if (categoryColor != null && !categoryColor.isEmpty()) {
-                        categoryColorIndicator.setBackgroundColor(Color.parseColor(categoryColor));
-                        categoryColorIndicator.setVisibility(View.VISIBLE);
-                    } else {
-                        categoryColorIndicator.setVisibility(View.GONE);
-                    }
+    private static class NoteViewHolder {
+        TextView titleView;
+        TextView noteView;
+        TextView dateView;
+        TextView categoryView;
+        View colorIndicator;
+        ImageView todoIcon;
+
+        final CharArrayBuffer titleBuffer = new CharArrayBuffer(64);
+        final CharArrayBuffer noteBuffer = new CharArrayBuffer(256);
+        final CharArrayBuffer categoryBuffer = new CharArrayBuffer(16);
+        final char[] dateBuffer = new char[DATE_LENGTH];
+
+        long noteId;
+        long categoryId;
+        int todoStatus;
+        int position;
+        float fontSize;
+        long modified = Long.MIN_VALUE;
+    }
+
+    private static final int DATE_LENGTH = "yyyy-MM-dd HH:mm".length();
 
-                    titleView.setCompoundDrawablesWithIntrinsicBounds(0, 0, 0, 0);
+    /**
+     * Binds note rows without allocating: views are looked up once per row view, text is copied
+     * into per-row buffers, the date is formatted by hand into a reused char array, colors are
+     * read as packed integers, and all todo icons share one click listener.
+     */
+    private class NotesAdapter extends ResourceCursorAdapter {
+        private float mFontSize;
+        private final Calendar mCalendar = Calendar.getInstance();
+
+        private final View.OnClickListener mTodoClickListener = new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                NoteViewHolder holder = (NoteViewHolder) v.getTag();
+                final long noteId = holder.noteId;
+                final Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), noteId);
+
+                // The list cursor already holds the status, so the note is not queried again.
+                int currentTodoStatus = holder.todoStatus;
+
+                int newStatus;
+                if (currentTodoStatus == NotePad.Notes.TODO_STATUS_COMPLETED) {
+                    newStatus = NotePad.Notes.TODO_STATUS_PENDING;
+                } else if (currentTodoStatus == NotePad.Notes.TODO_STATUS_PENDING) {
+                    newStatus = NotePad.Notes.TODO_STATUS_COMPLETED;
+                } else {
+                    newStatus = NotePad.Notes.TODO_STATUS_PENDING;
                 }
-            };
-            setListAdapter(adapter);
-        } else {
-            adapter.changeCursor(mCursor);
+
+                final ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_TODO_STATUS, newStatus);
+
+                // Shows the new status at once by patching the row, and keeps the old row to
+                // roll back to. The change notification of the write replaces the patch.
+                final NoteListLoader loader =
+                        (NoteListLoader) getLoaderManager().<Cursor>getLoader(LOADER_NOTES);
+                Cursor cursor = ((CursorAdapter) getListAdapter()).getCursor();
+                final Object[] before;
+                if (loader != null && cursor != null && cursor.moveToPosition(holder.position)
+                        && cursor.getLong(COLUMN_INDEX_ID) == noteId) {
+                    before = NoteCache.readRow(cursor);
+                    Object[] after = before.clone();
+                    after[COLUMN_INDEX_TODO_STATUS] = (long) newStatus;
+                    loader.putPatch(noteId, after);
+                } else {
+                    before = null;
+                }
+
+                final ContentResolver resolver = getContentResolver();
+                sWriteExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean written;
+                        try {
+                            written = resolver.update(noteUri, values, null, null) > 0;
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Failed to update todo status of note " + noteId, e);
+                            written = false;
+                        }
+                        if (!written) {
+                            runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    rollBackTodo(loader, noteId, before);
+                                }
+                            });
+                        }
+                    }
+                });
+            }
+        };
+
+        NotesAdapter(Context context) {
+            super(context, R.layout.noteslist_item, null, 0);
+            mFontSize = ThemeManager.getFontSizeValue(NotesList.this);
+        }
+
+        /**
+         * Changes the text size of the rows, binding the visible ones again.
+         */
+        void setFontSize(float fontSize) {
+            if (fontSize != mFontSize) {
+                mFontSize = fontSize;
+                notifyDataSetChanged();
+            }
+        }
+
+        @Override
+        public View newView(Context context, Cursor cursor, ViewGroup parent) {
+            View view = super.newView(context, cursor, parent);
+
+            NoteViewHolder holder = new NoteViewHolder();
+            holder.titleView = (TextView) view.findViewById(android.R.id.text1);
+            holder.noteView = (TextView) view.findViewById(R.id.text2);
+            holder.dateView = (TextView) view.findViewById(R.id.modification_date);
+            holder.categoryView = (TextView) view.findViewById(R.id.category_text);
+            holder.colorIndicator = view.findViewById(R.id.category_color_indicator);
+            holder.todoIcon = (ImageView) view.findViewById(R.id.todo_icon);
+
+            holder.titleView.setCompoundDrawablesWithIntrinsicBounds(0, 0, 0, 0);
+
+            holder.todoIcon.setTag(holder);
+            holder.todoIcon.setOnClickListener(mTodoClickListener);
+            holder.todoIcon.setVisibility(View.VISIBLE);
+
+            view.setTag(holder);
+            return view;
+        }
+
+        @Override
+        public void bindView(View view, Context context, Cursor cursor) {
+            NoteViewHolder holder = (NoteViewHolder) view.getTag();
+
+            // Recycled rows keep the text size they were last bound with.
+            if (holder.fontSize != mFontSize) {
+                holder.fontSize = mFontSize;
+                holder.titleView.setTextSize(mFontSize);
+                holder.noteView.setTextSize(mFontSize);
+                holder.categoryView.setTextSize(mFontSize);
+            }
+
+            holder.noteId = cursor.getLong(COLUMN_INDEX_ID);
+            holder.position = cursor.getPosition();
+            holder.categoryId = cursor.getLong(COLUMN_INDEX_CATEGORY_ID);
+
+            cursor.copyStringToBuffer(COLUMN_INDEX_TITLE, holder.titleBuffer);
+            holder.titleView.setText(holder.titleBuffer.data, 0, holder.titleBuffer.sizeCopied);
+
+            cursor.copyStringToBuffer(COLUMN_INDEX_PREVIEW, holder.noteBuffer);
+            holder.noteView.setText(holder.noteBuffer.data, 0, holder.noteBuffer.sizeCopied);
+
+            long modified = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
+            if (modified != holder.modified) {
+                holder.modified = modified;
+                formatDate(modified, holder.dateBuffer);
+            }
+            holder.dateView.setText(holder.dateBuffer, 0, DATE_LENGTH);
+
+            TextView titleView = holder.titleView;
+            holder.todoStatus = cursor.getInt(COLUMN_INDEX_TODO_STATUS);
+            switch (holder.todoStatus) {
+                case NotePad.Notes.TODO_STATUS_PENDING:
+                    holder.todoIcon.setImageResource(R.drawable.ic_todo_pending);
+                    titleView.setPaintFlags(titleView.getPaintFlags() & (~android.graphics.Paint.STRIKE_THRU_TEXT_FLAG));
+                    break;
+                case NotePad.Notes.TODO_STATUS_COMPLETED:
+                    holder.todoIcon.setImageResource(R.drawable.ic_todo_completed);
+                    titleView.setPaintFlags(titleView.getPaintFlags() | android.graphics.Paint.STRIKE_THRU_TEXT_FLAG);
+                    break;
+                default:
+                    holder.todoIcon.setImageResource(R.drawable.ic_todo_unchecked);
+                    titleView.setPaintFlags(titleView.getPaintFlags() & (~android.graphics.Paint.STRIKE_THRU_TEXT_FLAG));
+                    break;
+            }
+
+            cursor.copyStringToBuffer(COLUMN_INDEX_CATEGORY, holder.categoryBuffer);
+            if (holder.categoryBuffer.sizeCopied > 0) {
+                holder.categoryView.setText(holder.categoryBuffer.data, 0,
+                        holder.categoryBuffer.sizeCopied);
+                holder.categoryView.setVisibility(View.VISIBLE);
+            } else {
+                holder.categoryView.setVisibility(View.GONE);
+            }
+
+            if (!cursor.isNull(COL_CATEGORY_COLOR_INDEX)) {
+                holder.colorIndicator.setBackgroundColor(cursor.getInt(COL_CATEGORY_COLOR_INDEX));
+                holder.colorIndicator.setVisibility(View.VISIBLE);
+            } else {
+                holder.colorIndicator.setVisibility(View.GONE);
+            }
+        }
+
+        private void formatDate(long timestamp, char[] out) {
+            Calendar c = mCalendar;
+            c.setTimeInMillis(timestamp);
+            putDigits(out, 0, c.get(Calendar.YEAR), 4);
+            out[4] = '-';
+            putDigits(out, 5, c.get(Calendar.MONTH) + 1, 2);
+            out[7] = '-';
+            putDigits(out, 8, c.get(Calendar.DAY_OF_MONTH), 2);
+            out[10] = ' ';
+            putDigits(out, 11, c.get(Calendar.HOUR_OF_DAY), 2);
+            out[13] = ':';
+            putDigits(out, 14, c.get(Calendar.MINUTE), 2);
+        }
+
+        private void putDigits(char[] out, int offset, int value, int width) {
+            for (int i = offset + width - 1; i >= offset; i--) {
+                out[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
         }
     }
 
-    private String generateRandomColor() {
-        String[] colors = {
-                "#FF6B6B", "#4ECDC4", "#45B7D1", "#96CEB4", "#FFEAA7",
-                "#DDA0DD", "#98D8C8", "#F7DC6F", "#BB8FCE", "#85C1E2",
-                "#F8C471", "#82E0AA", "#F1948A", "#AED6F1", "#F9E79F",
-                "#D2B4DE", "#A3E4D7", "#FAD7A0", "#D7BDE2", "#A9CCE3"
+    private int generateRandomColor() {
+        int[] colors = {
+                0xFFFF6B6B, 0xFF4ECDC4, 0xFF45B7D1, 0xFF96CEB4, 0xFFFFEAA7,
+                0xFFDDA0DD, 0xFF98D8C8, 0xFFF7DC6F, 0xFFBB8FCE, 0xFF85C1E2,
+                0xFFF8C471, 0xFF82E0AA, 0xFFF1948A, 0xFFAED6F1, 0xFFF9E79F,
+                0xFFD2B4DE, 0xFFA3E4D7, 0xFFFAD7A0, 0xFFD7BDE2, 0xFFA9CCE3
         };
         Random random = new Random();
         return colors[random.nextInt(colors.length)];
@@ -501,39 +704,30 @@ public class NotesList extends ListActivity {
 
         } else if (item.getItemId() == R.id.menu_background_white) {
             ThemeManager.setBackgroundColorMode(this, ThemeManager.BACKGROUND_WHITE);
-            recreate();
             return true;
         } else if (item.getItemId() == R.id.menu_background_blue) {
             ThemeManager.setBackgroundColorMode(this, ThemeManager.BACKGROUND_BLUE);
-            recreate();
             return true;
         } else if (item.getItemId() == R.id.menu_background_yellow) {
             ThemeManager.setBackgroundColorMode(this, ThemeManager.BACKGROUND_YELLOW);
-            recreate();
             return true;
         } else if (item.getItemId() == R.id.menu_background_pink) {
             ThemeManager.setBackgroundColorMode(this, ThemeManager.BACKGROUND_PINK);
-            recreate();
             return true;
         } else if (item.getItemId() == R.id.menu_background_green) {
             ThemeManager.setBackgroundColorMode(this, ThemeManager.BACKGROUND_GREEN);
-            recreate();
             return true;
         } else if (item.getItemId() == R.id.menu_font_size_small) {
             ThemeManager.setFontSizeMode(this, ThemeManager.FONT_SIZE_SMALL);
-            recreate();
             return true;
         } else if (item.getItemId() == R.id.menu_font_size_medium) {
             ThemeManager.setFontSizeMode(this, ThemeManager.FONT_SIZE_MEDIUM);
-            recreate();
             return true;
         } else if (item.getItemId() == R.id.menu_font_size_large) {
             ThemeManager.setFontSizeMode(this, ThemeManager.FONT_SIZE_LARGE);
-            recreate();
             return true;
         } else if (item.getItemId() == R.id.menu_font_size_xlarge) {
             ThemeManager.setFontSizeMode(this, ThemeManager.FONT_SIZE_XLARGE);
-            recreate();
             return true;
         }
 
@@ -551,72 +745,40 @@ public class NotesList extends ListActivity {
         final EditText newCategoryName = (EditText) dialogView.findViewById(R.id.new_category_name);
         final Button addCategoryButton = (Button) dialogView.findViewById(R.id.add_category_button);
 
-        final Cursor cursor = getContentResolver().query(
-                NotePad.Categories.CONTENT_URI,
-                new String[]{NotePad.Categories._ID, NotePad.Categories.COLUMN_NAME_NAME, NotePad.Categories.COLUMN_NAME_COLOR},
-                null, null, null);
-
-        final SimpleCursorAdapter adapter = new SimpleCursorAdapter(
-                this,
-                R.layout.category_item,
-                cursor,
-                new String[]{NotePad.Categories.COLUMN_NAME_NAME, NotePad.Categories.COLUMN_NAME_COLOR},
-                new int[]{R.id.category_name, R.id.category_color});
-
-        adapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
-            @Override
-            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
-                if (columnIndex == cursor.getColumnIndex(NotePad.Categories.COLUMN_NAME_COLOR)) {
-                    String color = cursor.getString(columnIndex);
-                    View colorIndicator = view.findViewById(R.id.category_color);
-                    colorIndicator.setBackgroundColor(Color.parseColor(color));
-                    return true;
-                }
-                return false;
-            }
-        });
-
+        final CategoryListAdapter adapter =
+                new CategoryListAdapter(CategoryRegistry.get(this).getSnapshot());
         categoryListView.setAdapter(adapter);
 
         categoryListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                Cursor itemCursor = (Cursor) adapter.getItem(position);
-                if (itemCursor != null) {
-                    final String categoryId = itemCursor.getString(itemCursor.getColumnIndex(NotePad.Categories._ID));
-                    final String categoryName = itemCursor.getString(itemCursor.getColumnIndex(NotePad.Categories.COLUMN_NAME_NAME));
-
-                    if ("其他".equals(categoryName)) {
-                        Toast.makeText(NotesList.this, "不能删除默认分类", Toast.LENGTH_SHORT).show();
-                        return;
-                    }
+                final long categoryId = adapter.getItemId(position);
+                final String categoryName = adapter.getItem(position);
 
-                    AlertDialog.Builder confirmBuilder = new AlertDialog.Builder(NotesList.this);
-                    confirmBuilder.setTitle("确认删除");
-                    confirmBuilder.setMessage("确定要删除分类\"" + categoryName + "\"吗？使用该分类的笔记将被移至'其他'分类。");
-                    confirmBuilder.setPositiveButton("删除", new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialog, int which) {
-                            Uri categoryUri = ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, Long.parseLong(categoryId));
-                            int deletedRows = getContentResolver().delete(categoryUri, null, null);
-
-                            if (deletedRows > 0) {
-                                Toast.makeText(NotesList.this, "分类删除成功", Toast.LENGTH_SHORT).show();
-                                Cursor newCursor = getContentResolver().query(
-                                        NotePad.Categories.CONTENT_URI,
-                                        new String[]{NotePad.Categories._ID, NotePad.Categories.COLUMN_NAME_NAME, NotePad.Categories.COLUMN_NAME_COLOR},
-                                        null, null, null);
-                                adapter.changeCursor(newCursor);
-
-                                refreshNoteList();
-                            } else {
-                                Toast.makeText(NotesList.this, "分类删除失败", Toast.LENGTH_SHORT).show();
-                            }
-                        }
-                    });
-                    confirmBuilder.setNegativeButton("取消", null);
-                    confirmBuilder.show();
+                if ("其他".equals(categoryName)) {
+                    Toast.makeText(NotesList.this, "不能删除默认分类", Toast.LENGTH_SHORT).show();
+                    return;
                 }
+
+                AlertDialog.Builder confirmBuilder = new AlertDialog.Builder(NotesList.this);
+                confirmBuilder.setTitle("确认删除");
+                confirmBuilder.setMessage("确定要删除分类\"" + categoryName + "\"吗？使用该分类的笔记将被移至'其他'分类。");
+                confirmBuilder.setPositiveButton("删除", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Uri categoryUri = ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, categoryId);
+                        int deletedRows = getContentResolver().delete(categoryUri, null, null);
+
+                        if (deletedRows > 0) {
+                            Toast.makeText(NotesList.this, "分类删除成功", Toast.LENGTH_SHORT).show();
+                            refreshNoteList();
+                        } else {
+                            Toast.makeText(NotesList.this, "分类删除失败", Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+                confirmBuilder.setNegativeButton("取消", null);
+                confirmBuilder.show();
             }
         });
 
@@ -625,17 +787,8 @@ public class NotesList extends ListActivity {
             public void onClick(View v) {
                 String categoryName = newCategoryName.getText().toString().trim();
                 if (!categoryName.isEmpty()) {
-                    Cursor checkCursor = getContentResolver().query(
-                            NotePad.Categories.CONTENT_URI,
-                            new String[]{NotePad.Categories._ID},
-                            NotePad.Categories.COLUMN_NAME_NAME + " = ?",
-                            new String[]{categoryName},
-                            null);
-
-                    boolean exists = checkCursor != null && checkCursor.getCount() > 0;
-                    if (checkCursor != null) {
-                        checkCursor.close();
-                    }
+                    boolean exists = CategoryRegistry.get(NotesList.this).getSnapshot()
+                            .indexOfName(categoryName) >= 0;
 
                     if (exists) {
                         Toast.makeText(NotesList.this, "分类已存在", Toast.LENGTH_SHORT).show();
@@ -646,12 +799,6 @@ public class NotesList extends ListActivity {
 
                         getContentResolver().insert(NotePad.Categories.CONTENT_URI, values);
 
-                        Cursor newCursor = getContentResolver().query(
-                                NotePad.Categories.CONTENT_URI,
-                                new String[]{NotePad.Categories._ID, NotePad.Categories.COLUMN_NAME_NAME, NotePad.Categories.COLUMN_NAME_COLOR},
-                                null, null, null);
-                        adapter.changeCursor(newCursor);
-
                         newCategoryName.setText("");
                         Toast.makeText(NotesList.this, "分类添加成功", Toast.LENGTH_SHORT).show();
 
@@ -666,28 +813,76 @@ public class NotesList extends ListActivity {
         builder.setPositiveButton("关闭", new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-                if (cursor != null) {
-                    cursor.close();
-                }
                 dialog.dismiss();
             }
         });
 
         final AlertDialog dialog = builder.create();
 
+        // The list follows the registry while the dialog is open; the filter spinner has its
+        // own listener, so nothing is reloaded on dismiss.
+        CategoryRegistry.get(this).addListener(adapter);
         dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
             @Override
             public void onDismiss(DialogInterface dialog) {
-                if (cursor != null) {
-                    cursor.close();
-                }
-                initCategoryFilter();
+                CategoryRegistry.get(NotesList.this).removeListener(adapter);
             }
         });
 
         dialog.show();
     }
 
+    /**
+     * Lists the categories of a registry snapshot in the category manager, and switches to each
+     * new snapshot as it arrives.
+     */
+    private class CategoryListAdapter extends BaseAdapter implements CategoryRegistry.Listener {
+        private CategoryRegistry.Snapshot mSnapshot;
+
+        CategoryListAdapter(CategoryRegistry.Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public void onCategoriesChanged(CategoryRegistry.Snapshot snapshot) {
+            mSnapshot = snapshot;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.size();
+        }
+
+        @Override
+        public String getItem(int position) {
+            return mSnapshot.getName(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mSnapshot.getId(position);
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View view = convertView;
+            if (view == null) {
+                view = LayoutInflater.from(NotesList.this)
+                        .inflate(R.layout.category_item, parent, false);
+            }
+            ((TextView) view.findViewById(R.id.category_name)).setText(getItem(position));
+            view.findViewById(R.id.category_color)
+                    .setBackgroundColor(mSnapshot.getColor(position));
+            return view;
+        }
+    }
+
     @Override
     public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
 
@@ -748,11 +943,20 @@ public class NotesList extends ListActivity {
 
             return true;
         } else if (id == R.id.context_delete) {
-            getContentResolver().delete(
-                    noteUri,
-                    null,
-                    null
-            );
+            // Deleting only marks the note, but still waits for the database, so it runs off
+            // the UI thread. The change notification removes the note from the list.
+            final ContentResolver resolver = getContentResolver();
+            final Uri deleteUri = noteUri;
+            sWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resolver.delete(deleteUri, null, null);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Failed to delete " + deleteUri, e);
+                    }
+                }
+            });
 
             return true;
         }
@@ -778,6 +982,6 @@ public class NotesList extends ListActivity {
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
-        refreshNoteList();
+        ((CursorAdapter) getListAdapter()).notifyDataSetChanged();
     }
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+package com.example.android.notepad;
+
+import android.os.Bundle;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what the provider does, per operation and URI type: calls, rows touched, bytes
+ * streamed, total time and a latency histogram.
+ *
+ * Recording takes a few atomic increments and allocates nothing, so the metrics stay on in
+ * production. The counters only grow; a collector takes the difference of two snapshots.
+ */
+final class ProviderMetrics {
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+    static final int STREAM = 4;
+    static final int NOTIFY = 5;
+
+    private static final String[] OPERATION_NAMES = {
+        NotePad.Notes.METRICS_QUERY,
+        NotePad.Notes.METRICS_INSERT,
+        NotePad.Notes.METRICS_UPDATE,
+        NotePad.Notes.METRICS_DELETE,
+        NotePad.Notes.METRICS_STREAM,
+        NotePad.Notes.METRICS_NOTIFY
+    };
+
+    // The upper bound of the first latency bucket. Each further bucket doubles the bound, and
+    // the last one holds everything slower, about a second and up.
+    private static final long FIRST_BUCKET_MICROS = 64;
+    private static final int BUCKET_COUNT = 16;
+
+    private static final int CALLS = 0;
+    private static final int ROWS = 1;
+    private static final int BYTES = 2;
+    private static final int TOTAL_MICROS = 3;
+    private static final int BUCKETS = 4;
+    private static final int SLOT_SIZE = BUCKETS + BUCKET_COUNT;
+
+    private final String[] mUriTypes;
+    private final AtomicLongArray mCounters;
+
+    /**
+     * Creates metrics for the given URI types, indexed by UriMatcher code. Codes outside the
+     * array are counted under the first type.
+     */
+    ProviderMetrics(String[] uriTypes) {
+        mUriTypes = uriTypes;
+        mCounters = new AtomicLongArray(OPERATION_NAMES.length * uriTypes.length * SLOT_SIZE);
+    }
+
+    /**
+     * Records one call that started at startNanos, as returned by System.nanoTime().
+     */
+    void record(int operation, int uriType, long startNanos, long rows, long bytes) {
+        if (uriType < 0 || uriType >= mUriTypes.length) {
+            uriType = 0;
+        }
+        int slot = (operation * mUriTypes.length + uriType) * SLOT_SIZE;
+        long micros = Math.max(0, (System.nanoTime() - startNanos) / 1000);
+
+        mCounters.incrementAndGet(slot + CALLS);
+        if (rows > 0) {
+            mCounters.addAndGet(slot + ROWS, rows);
+        }
+        if (bytes > 0) {
+            mCounters.addAndGet(slot + BYTES, bytes);
+        }
+        mCounters.addAndGet(slot + TOTAL_MICROS, micros);
+        mCounters.incrementAndGet(slot + BUCKETS + bucketOf(micros));
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < FIRST_BUCKET_MICROS) {
+            return 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(micros / FIRST_BUCKET_MICROS);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the counters as a Bundle keyed by operation, then by URI type. URI types that
+     * were never called are left out. The bucket bounds are included, so that collectors do
+     * not hard-code them.
+     */
+    Bundle snapshot() {
+        Bundle snapshot = new Bundle();
+        long[] bounds = new long[BUCKET_COUNT - 1];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = FIRST_BUCKET_MICROS << i;
+        }
+        snapshot.putLongArray(NotePad.Notes.METRICS_HISTOGRAM_BOUNDS, bounds);
+
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            Bundle byType = new Bundle();
+            for (int uriType = 0; uriType < mUriTypes.length; uriType++) {
+                int slot = (operation * mUriTypes.length + uriType) * SLOT_SIZE;
+                long calls = mCounters.get(slot + CALLS);
+                if (calls == 0) {
+                    continue;
+                }
+                Bundle counters = new Bundle();
+                counters.putLong(NotePad.Notes.METRICS_CALLS, calls);
+                counters.putLong(NotePad.Notes.METRICS_ROWS, mCounters.get(slot + ROWS));
+                counters.putLong(NotePad.Notes.METRICS_BYTES, mCounters.get(slot + BYTES));
+                counters.putLong(NotePad.Notes.METRICS_TOTAL_MICROS,
+                        mCounters.get(slot + TOTAL_MICROS));
+                long[] histogram = new long[BUCKET_COUNT];
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    histogram[i] = mCounters.get(slot + BUCKETS + i);
+                }
+                counters.putLongArray(NotePad.Notes.METRICS_HISTOGRAM, histogram);
+                byType.putBundle(mUriTypes[uriType], counters);
+            }
+            snapshot.putBundle(OPERATION_NAMES[operation], byType);
+        }
+        return snapshot;
+    }
+
+    /**
+     * An output stream that counts the bytes written through it.
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.android.notepad;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.util.LongSparseArray;
+
+/**
+ * Wraps a notes list cursor and replaces the values of patched rows, so that a change to a note
+ * or a category can be shown without loading the list again.
+ *
+ * A note patch holds a whole row, in the columns of the wrapped cursor. A category patch holds
+ * only the category columns, {@link #KEEP} elsewhere, and applies to every row in the category.
+ * The patches are owned by the caller, which updates them on the main thread.
+ */
+final class RowOverlayCursor extends CursorWrapper {
+
+    /**
+     * Marks a column a category patch leaves alone.
+     */
+    static final Object KEEP = new Object();
+
+    private final int mIdColumn;
+    private final int mCategoryIdColumn;
+    private final LongSparseArray<Object[]> mNotes;
+    private final LongSparseArray<Object[]> mCategories;
+
+    RowOverlayCursor(Cursor cursor, LongSparseArray<Object[]> notes,
+                     LongSparseArray<Object[]> categories) {
+        super(cursor);
+        mIdColumn = cursor.getColumnIndexOrThrow(NotePad.Notes._ID);
+        mCategoryIdColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        mNotes = notes;
+        mCategories = categories;
+    }
+
+    /**
+     * Returns the patched value of the column in the current row, or KEEP if it is not patched.
+     */
+    private Object patched(int column) {
+        Object[] note = null;
+        if (mNotes.size() > 0) {
+            note = mNotes.get(super.getLong(mIdColumn));
+        }
+        if (mCategories.size() > 0 && mCategoryIdColumn >= 0) {
+            long categoryId = note != null && note[mCategoryIdColumn] instanceof Long
+                    ? (Long) note[mCategoryIdColumn]
+                    : super.getLong(mCategoryIdColumn);
+            Object[] category = mCategories.get(categoryId);
+            if (category != null && category[column] != KEEP) {
+                return category[column];
+            }
+        }
+        return note != null ? note[column] : KEEP;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = patched(column);
+        if (value == KEEP) {
+            return super.getString(column);
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+        Object value = patched(column);
+        if (value == KEEP) {
+            super.copyStringToBuffer(column, buffer);
+            return;
+        }
+        String text = value != null ? value.toString() : "";
+        if (buffer.data == null || buffer.data.length < text.length()) {
+            buffer.data = text.toCharArray();
+        } else {
+            text.getChars(0, text.length(), buffer.data, 0);
+        }
+        buffer.sizeCopied = text.length();
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = patched(column);
+        if (value == KEEP) {
+            return super.getBlob(column);
+        }
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = patched(column);
+        if (value == KEEP) {
+            return super.getLong(column);
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value != null ? Long.parseLong(value.toString()) : 0;
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = patched(column);
+        if (value == KEEP) {
+            return super.getDouble(column);
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value != null ? Double.parseDouble(value.toString()) : 0;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        Object value = patched(column);
+        return value == KEEP ? super.isNull(column) : value == null;
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = patched(column);
+        if (value == KEEP) {
+            return super.getType(column);
+        } else if (value == null) {
+            return Cursor.FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return Cursor.FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return Cursor.FIELD_TYPE_BLOB;
+        }
+        return Cursor.FIELD_TYPE_STRING;
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.android.notepad;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.view.View;
@@ -8,6 +9,8 @@ import android.view.WindowManager;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+
 public class ThemeManager {
     private static final String KEY_BACKGROUND_COLOR = "background_color";
     private static final String KEY_FONT_SIZE = "font_size";
@@ -25,60 +28,169 @@ public class ThemeManager {
 
     private static final float[] FONT_SIZES = {14f, 16f, 18f, 20f};
 
+    /**
+     * The theme preferences at one point in time, with the colors already resolved.
+     */
+    public static final class Theme {
+        private final int mBackgroundColorMode;
+        private final int mFontSizeMode;
+        private final int mBackgroundColor;
+        private final int mStatusBarColor;
+
+        Theme(Context context, int backgroundColorMode, int fontSizeMode) {
+            if (fontSizeMode < 0 || fontSizeMode >= FONT_SIZES.length) {
+                fontSizeMode = FONT_SIZE_MEDIUM;
+            }
+            mBackgroundColorMode = backgroundColorMode;
+            mFontSizeMode = fontSizeMode;
+            mBackgroundColor = context.getResources().getColor(
+                    getBackgroundColorResId(backgroundColorMode));
+            mStatusBarColor = context.getResources().getColor(R.color.primary_dark);
+        }
+
+        public int getBackgroundColorMode() {
+            return mBackgroundColorMode;
+        }
+
+        public int getFontSizeMode() {
+            return mFontSizeMode;
+        }
+
+        public float getFontSize() {
+            return FONT_SIZES[mFontSizeMode];
+        }
+
+        public int getBackgroundColor() {
+            return mBackgroundColor;
+        }
+
+        public int getStatusBarColor() {
+            return mStatusBarColor;
+        }
+    }
+
+    public interface Listener {
+        void onThemeChanged(Theme theme);
+    }
+
+    private static SharedPreferences sPreferences;
+    private static Context sContext;
+    private static Theme sTheme;
+    private static final ArrayList<Listener> sListeners = new ArrayList<Listener>();
+
+    // Kept in a field, since SharedPreferences only holds its listeners weakly.
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sPreferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+                    if (KEY_BACKGROUND_COLOR.equals(key) || KEY_FONT_SIZE.equals(key)) {
+                        reload();
+                    }
+                }
+            };
+
+    /**
+     * Returns the current theme. The preferences are read once per process, and read again
+     * only when one of them changes.
+     */
+    public static synchronized Theme getTheme(Context context) {
+        if (sTheme == null) {
+            sContext = context.getApplicationContext();
+            sPreferences = PreferenceManager.getDefaultSharedPreferences(sContext);
+            sPreferences.registerOnSharedPreferenceChangeListener(sPreferenceListener);
+            sTheme = load();
+        }
+        return sTheme;
+    }
+
+    /**
+     * Adds a listener that is called on the main thread whenever the theme changes, so that
+     * live views can follow it without the activity being recreated.
+     */
+    public static void addListener(Listener listener) {
+        synchronized (sListeners) {
+            sListeners.add(listener);
+        }
+    }
+
+    public static void removeListener(Listener listener) {
+        synchronized (sListeners) {
+            sListeners.remove(listener);
+        }
+    }
+
+    private static Theme load() {
+        return new Theme(sContext,
+                sPreferences.getInt(KEY_BACKGROUND_COLOR, BACKGROUND_WHITE),
+                sPreferences.getInt(KEY_FONT_SIZE, FONT_SIZE_MEDIUM));
+    }
+
+    private static void reload() {
+        Theme theme;
+        synchronized (ThemeManager.class) {
+            theme = load();
+            sTheme = theme;
+        }
+        Listener[] listeners;
+        synchronized (sListeners) {
+            listeners = sListeners.toArray(new Listener[sListeners.size()]);
+        }
+        for (Listener listener : listeners) {
+            listener.onThemeChanged(theme);
+        }
+    }
+
     public static int getBackgroundColorMode(Activity activity) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(activity);
-        return preferences.getInt(KEY_BACKGROUND_COLOR, BACKGROUND_WHITE);
+        return getTheme(activity).getBackgroundColorMode();
     }
 
     public static void setBackgroundColorMode(Activity activity, int mode) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(activity);
-        preferences.edit().putInt(KEY_BACKGROUND_COLOR, mode).apply();
-        applyBackgroundColor(activity);
+        getTheme(activity);
+        sPreferences.edit().putInt(KEY_BACKGROUND_COLOR, mode).apply();
     }
 
     public static int getFontSizeMode(Activity activity) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(activity);
-        return preferences.getInt(KEY_FONT_SIZE, FONT_SIZE_MEDIUM);
+        return getTheme(activity).getFontSizeMode();
     }
 
     public static void setFontSizeMode(Activity activity, int mode) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(activity);
-        preferences.edit().putInt(KEY_FONT_SIZE, mode).apply();
+        getTheme(activity);
+        sPreferences.edit().putInt(KEY_FONT_SIZE, mode).apply();
     }
 
     public static float getFontSizeValue(Activity activity) {
-        int mode = getFontSizeMode(activity);
-        return FONT_SIZES[mode];
+        return getTheme(activity).getFontSize();
     }
 
     public static void applyBackgroundColor(Activity activity) {
         activity.setTheme(R.style.NotePadTheme);
+        applyBackgroundColor(activity, getTheme(activity));
+    }
 
+    /**
+     * Colors the window of a running activity with the given theme.
+     */
+    public static void applyBackgroundColor(Activity activity, Theme theme) {
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
             activity.getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
-            activity.getWindow().setStatusBarColor(activity.getResources().getColor(R.color.primary_dark));
+            activity.getWindow().setStatusBarColor(theme.getStatusBarColor());
         }
 
         View rootView = activity.getWindow().getDecorView().getRootView();
         if (rootView != null) {
-            int backgroundColor = getBackgroundColorResId(activity);
-            rootView.setBackgroundColor(activity.getResources().getColor(backgroundColor));
+            rootView.setBackgroundColor(theme.getBackgroundColor());
         }
     }
 
     public static void applyFontSize(EditText editText, Activity activity) {
-        float fontSize = getFontSizeValue(activity);
-        editText.setTextSize(fontSize);
+        editText.setTextSize(getFontSizeValue(activity));
     }
 
     public static void applyFontSize(TextView textView, Activity activity) {
-        float fontSize = getFontSizeValue(activity);
-        textView.setTextSize(fontSize);
+        textView.setTextSize(getFontSizeValue(activity));
     }
 
-    private static int getBackgroundColorResId(Activity activity) {
-        int mode = getBackgroundColorMode(activity);
-
+    private static int getBackgroundColorResId(int mode) {
         switch (mode) {
             case BACKGROUND_WHITE:
                 return R.color.background_white;